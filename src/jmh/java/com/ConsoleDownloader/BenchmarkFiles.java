@@ -0,0 +1,66 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Общее для бенчмарков: локальный сервер с одним файлом,
+ * временный каталог и файл ссылок на него
+ */
+@State(Scope.Benchmark)
+public class BenchmarkFiles {
+	static final String PATH = "/file.bin";
+
+	LocalOrigin origin;
+	File folder;									//Каталог для сохранения
+	String links;									//Файл ссылок
+
+	/**
+	 * Запускает сервер с файлом размера size
+	 */
+	void start(int size, long latency, long bandwidth) throws IOException {
+		origin = new LocalOrigin();
+		origin.setLatency(latency);
+		origin.setBandwidth(bandwidth);
+		String url = origin.addFile(PATH, size);
+		folder = Files.createTempDirectory("bench").toFile();
+		File linksFile = new File(folder, "links.txt");
+		try (FileWriter fw = new FileWriter(linksFile)) {
+			fw.write(url + " file.bin\n");
+		}
+		links = linksFile.getPath();
+	}
+
+	/**
+	 * Загружает файл ссылок и ждет окончания
+	 * @return кол-во загруженных байт
+	 */
+	long download(int countThreads, long speed, DownloadSettings settings) throws InterruptedException {
+		DownLoaderFiles downloaderFiles = new DownLoaderFiles(links, folder.getPath(), countThreads, speed, settings);
+		downloaderFiles.thrd.join();
+		return downloaderFiles.totalDownloaded.get();
+	}
+
+	void stop() {
+		origin.stop();
+		for (File file: folder.listFiles())
+			file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Счетчик загруженных байт: JMH выводит его как байт/сек
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clean() {
+			bytes = 0;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Цикл ограничения скорости: накладные расходы TokenBucket.acquire()
+ * при конкуренции потоков и точность соблюдения лимита при загрузке.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimitBenchmark {
+	private static final int FILE_SIZE = 4*1024*1024;
+	private static final long HUGE_RATE = 1L << 50;		//Лимит, который не достигается
+
+	@Param({"4194304"})
+	public long speed;								//Лимит при загрузке, байт/сек
+
+	@Param({"4"})
+	public int parts;								//Кол-во потоков при загрузке
+
+	private TokenBucket unlimited;
+	private TokenBucket limited;
+	private BenchmarkFiles files;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		unlimited = new TokenBucket(0);
+		limited = new TokenBucket(HUGE_RATE);
+		files = new BenchmarkFiles();
+		files.start(FILE_SIZE, 0, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		files.stop();
+	}
+
+	/**
+	 * Проход без лимита
+	 */
+	@Benchmark
+	@Threads(4)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void acquireUnlimited() {
+		unlimited.acquire(65536);
+	}
+
+	/**
+	 * Пополнение и списание токенов без ожидания: стоимость CAS при 4 потоках
+	 */
+	@Benchmark
+	@Threads(4)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void acquireContended() {
+		limited.acquire(65536);
+	}
+
+	/**
+	 * Загрузка с лимитом: счетчик bytes (байт/сек) должен быть близок к speed
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long limitedDownload(BenchmarkFiles.Bytes bytes) throws InterruptedException {
+		long downloaded = files.download(parts, speed, new DownloadSettings());
+		bytes.bytes += downloaded;
+		return downloaded;
+	}
+}
@@ -0,0 +1,60 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Загрузка файла по частям с локального сервера: весь путь от Range-запросов
+ * до позиционной записи на диск. Скорость - счетчик bytes (байт/сек),
+ * хвостовые задержки - режим SampleTime, аллокации - профайлер gc.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+	private static final int FILE_SIZE = 16*1024*1024;
+
+	@Param({"8192", "65536", "262144"})
+	public int bufferSize;							//Размер буфера чтения и записи
+
+	@Param({"1", "4", "8"})
+	public int parts;								//Кол-во потоков на файл
+
+	@Param({"0", "20"})
+	public long latency;							//Задержка ответа сервера, мс
+
+	private BenchmarkFiles files;
+	private DownloadSettings settings;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		files = new BenchmarkFiles();
+		files.start(FILE_SIZE, latency, 0);
+		settings = new DownloadSettings();
+		settings.setBufferSize(bufferSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		files.stop();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long throughput(BenchmarkFiles.Bytes bytes) throws InterruptedException {
+		long downloaded = files.download(parts, 0, settings);
+		bytes.bytes += downloaded;
+		return downloaded;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long latency() throws InterruptedException {
+		return files.download(parts, 0, settings);
+	}
+}
@@ -27,19 +27,22 @@ class BadParamException extends Exception {
  * Бросает исключение BadParamException
  */
 class AnalyzeParameters {
-	private Map<String, List<String>> listFiles;	//Карта url и имен для сохранения
+	private static final long MAX_BUFFER_SIZE = 1024*1024*1024;	//Макс. --buffer-size, байт
+	private String linksFile;						//Файл ссылок
 	private int countThreads;						//Кол-во потоков
 	private long speed;								//Макс. скорость загрузки в байтах
 	private String outFolder;						//Папка для сохранения
+	private DownloadSettings settings;				//Необязательные настройки
 	
 	AnalyzeParameters(String[] args) throws BadParamException
 	{	
-		
-		if (args.length != 8) {						//Неверное кол-во параметров
+		//Неверное кол-во параметров: 4 обязательных и необязательные, каждый со значением
+		if (args.length < 8 || args.length % 2 != 0) {
 			throw new BadParamException("count of parameters", Integer.toString(args.length));
 		}
 		
-		listFiles = new HashMap<String, List<String>>();
+		linksFile = null;
+		settings = new DownloadSettings();
 		
 		for (int i =0; i < args.length; i+=2)
 			if (args[i].equals("-n"))				
@@ -51,47 +54,157 @@ class AnalyzeParameters {
 			//Список файлов для закачки
 			else if (args[i].equals("-f"))
 				analyzeFileOfLinks(args[i], args[i+1]);			
+			//Необязательные настройки
+			else if (args[i].equals("--min-chunk"))
+				settings.setMinChunk(parseSize(args[i], args[i+1]));
+			else if (args[i].equals("--buffer-size"))
+				analyzeBufferSize(args[i], args[i+1]);
+			else if (args[i].equals("--buffer-memory"))
+				settings.setBufferMemory(parseSize(args[i], args[i+1]));
+			else if (args[i].equals("--writers"))
+				settings.setWriters(parseNumber(args[i], args[i+1], 0));
+			else if (args[i].equals("--host-speed"))
+				settings.setHostSpeed(parseSize(args[i], args[i+1]));
+			else if (args[i].equals("--max-per-host"))
+				settings.setMaxPerHost(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--queue"))
+				settings.setQueueSize(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--link"))
+				settings.setLinkMode(parseChoice(args[i], args[i+1], FileAliases.COPY, FileAliases.HARD, FileAliases.SYMBOLIC, FileAliases.REFLINK));
+			else if (args[i].equals("--dedup"))
+				settings.setDedup(parseChoice(args[i], args[i+1], "on", "off").equals("on"));
+			else if (args[i].equals("--compress"))
+				settings.setCompress(parseChoice(args[i], args[i+1], "on", "off").equals("on"));
+			else if (args[i].equals("--adaptive"))
+				settings.setAdaptive(parseChoice(args[i], args[i+1], "on", "off").equals("on"));
+			else if (args[i].equals("--retries"))
+				settings.setRetries(parseNumber(args[i], args[i+1], 0));
+			else if (args[i].equals("--connect-timeout"))
+				settings.setConnectTimeout(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--read-timeout"))
+				settings.setReadTimeout(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--probe-threads"))
+				settings.setProbeThreads(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--schedule"))
+				settings.setSchedule(parseChoice(args[i], args[i+1], Scheduler.FIFO, Scheduler.LARGEST, Scheduler.SMALLEST, Scheduler.FAIR));
+			else if (args[i].equals("--cache")) {
+				settings.setCache(!args[i+1].equals("off"));
+				if (!args[i+1].equals("on") && !args[i+1].equals("off"))
+					settings.setCacheFile(args[i+1]);
+			}
+			else if (args[i].equals("--progress"))
+				settings.setProgressInterval(parseNumber(args[i], args[i+1], 0));
+			else if (args[i].equals("--metrics"))
+				settings.setMetricsFile(args[i+1]);
+			else if (args[i].equals("--metrics-port"))
+				settings.setMetricsPort(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--daemon-port"))
+				settings.setDaemonPort(parseCount(args[i], args[i+1]));
+			else if (args[i].equals("--spool"))
+				analyzeSpool(args[i], args[i+1]);
+			else if (args[i].equals("--engine"))
+				settings.setEngine(parseChoice(args[i], args[i+1], ExecutionEngines.THREADS, ExecutionEngines.VIRTUAL));
 			else {
 				throw new BadParamException(args[i], "unknown parameter");
 			}		
+		
+		//Проверка, что заданы все обязательные параметры
+		if (countThreads == 0)
+			throw new BadParamException("-n", "missing");
+		if (speed == 0)
+			throw new BadParamException("-l", "missing");
+		if (outFolder == null)
+			throw new BadParamException("-o", "missing");
+		if (linksFile == null && !settings.isDaemon())		//Службе задания можно передать позже
+			throw new BadParamException("-f", "missing");
+		if (settings.getBufferSize() > settings.getBufferMemory())	//Хотя бы один буфер должен помещаться в память
+			throw new BadParamException("--buffer-size", settings.getBufferSize() + " > --buffer-memory " + settings.getBufferMemory());
 	}
 	
 	private void analyzeCountThreads(String param, String value) throws  BadParamException {
+		countThreads = parseCount(param, value);
+	}
+	
+	/**
+	 * Разбирает положительное целое число
+	 */
+	private int parseCount(String param, String value) throws  BadParamException {
+		return parseNumber(param, value, 1);
+	}
+	
+	/**
+	 * Разбирает целое число не меньше min
+	 */
+	private int parseNumber(String param, String value, int min) throws  BadParamException {
 		try	{
-			countThreads = Integer.parseInt(value);
-			if (countThreads < 1)			//Проверка на положительность
+			int number = Integer.parseInt(value);
+			if (number < min)
 				throw new BadParamException(param, value);
+			return number;
 		} catch (NumberFormatException e) {
 			throw new BadParamException(param, value);
 		}
 	}
 	
+	/**
+	 * Размер буфера - int, больше MAX_BUFFER_SIZE не принимается
+	 */
+	private void analyzeBufferSize(String param, String value) throws  BadParamException {
+		long size = parseSize(param, value);
+		if (size > MAX_BUFFER_SIZE)
+			throw new BadParamException(param, value);
+		settings.setBufferSize((int)size);
+	}
+
 	private void analyzeSpeed(String param, String value) throws  BadParamException {
+		speed = parseSize(param, value);
+	}
+	
+	/**
+	 * Разбирает положительный размер в байтах с необязательным суффиксом 'k', 'm' или 'g'
+	 * @return размер в байтах
+	 */
+	private long parseSize(String param, String value) throws  BadParamException {
 		try {
-			String strSpeed= value;
-			int k = 1;
+			String strSize= value;
+			long k = 1;
 			
+			//Проверка на суффикс 'g'
+			if (strSize.charAt(strSize.length() -1) == 'g') {
+				k = 1024*1024*1024;
+				strSize = strSize.substring(0, strSize.length() - 1); 
+			}
 			//Проверка на суффикс 'm'
-			if (strSpeed.charAt(strSpeed.length() -1) == 'm') {
+			else if (strSize.charAt(strSize.length() -1) == 'm') {
 				k = 1024*1024;
-				strSpeed = strSpeed.substring(0, strSpeed.length() - 1); 
+				strSize = strSize.substring(0, strSize.length() - 1); 
 			}
 			//Проверка на суффикс 'k'
-			else if (strSpeed.charAt(strSpeed.length() -1) == 'k') {
+			else if (strSize.charAt(strSize.length() -1) == 'k') {
 				k = 1024;
-				strSpeed = strSpeed.substring(0, strSpeed.length() - 1);
+				strSize = strSize.substring(0, strSize.length() - 1);
 			}
-			speed = Integer.parseInt(strSpeed);
+			long size = Long.parseLong(strSize);
 			
-			if (speed < 1)			//Проверка на положительность
+			if (size < 1)			//Проверка на положительность
 				throw new BadParamException(param, value);
 			
-			speed = k * speed;
-		} catch (NumberFormatException e) {
+			return Math.multiplyExact(k, size);
+		} catch (NumberFormatException | ArithmeticException e) {
 			throw new BadParamException(param, value);
 		}
 	}
 	
+	/**
+	 * Проверяет, что значение - одно из допустимых
+	 */
+	private String parseChoice(String param, String value, String... choices) throws  BadParamException {
+		for (String choice: choices)
+			if (choice.equals(value))
+				return value;
+		throw new BadParamException(param, value);
+	}
+	
 	private void analyzeOutputFolder(String param, String value) throws  BadParamException {
 		File file = new File(value);
 		if (!file.exists())
@@ -102,28 +215,57 @@ class AnalyzeParameters {
 		outFolder = value;
 	}
 	
+	/**
+	 * Проверяет папку для файлов ссылок службы, создает ее при необходимости
+	 */
+	private void analyzeSpool(String param, String value) throws  BadParamException {
+		File file = new File(value);
+		if (!file.isDirectory() && !file.mkdirs())
+			throw new BadParamException(param, value);
+		settings.setSpool(value);
+	}
+	
+	/**
+	 * Проверяет, что файл ссылок можно прочитать. Сам файл читается
+	 * построчно во время загрузки
+	 */
 	private void analyzeFileOfLinks(String param, String value) throws  BadParamException{
-		String line;
-		try (BufferedReader br = new BufferedReader(new FileReader(value))){
-			while ((line = br.readLine()) != null) {
-				String files[] = line.split(" ");
-				if (listFiles.containsKey(files[0]))
-					listFiles.get(files[0]).add(files[1]);
-				else
-					listFiles.put(files[0], new ArrayList<String>(Arrays.asList(files[1])));
-			}
+		try {
+			new LinkReader(value).close();
+			linksFile = value;
 		} catch (IOException exec) {
 			throw new BadParamException(param, exec.toString());	
 		}
 	}
 	
 	/**
-	 * @return Map <url, filenames>
+	 * Читает весь файл ссылок в память
+	 * @return Map <url, filenames> или null, если файл не прочитан
 	 */
 	public Map<String, List<String>> getListFiles() {
+		Map<String, List<String>> listFiles = new HashMap<String, List<String>>();
+		try (LinkReader reader = new LinkReader(linksFile)) {
+			Link link;
+			while ((link = reader.next()) != null) {
+				if (listFiles.containsKey(link.url))
+					listFiles.get(link.url).add(link.name);
+				else
+					listFiles.put(link.url, new ArrayList<String>(Arrays.asList(link.name)));
+			}
+		} catch (IOException exec) {
+			System.out.println("Error read " + linksFile + " " + exec);
+			return null;
+		}
 		return listFiles;
 	}
 	
+	/**
+	 * @return Файл ссылок или null, если служба запущена без него
+	 */
+	public String getLinksFile() {
+		return linksFile;
+	}
+	
 	/**
 	 * @return Кол-во потоков
 	 */
@@ -144,4 +286,11 @@ class AnalyzeParameters {
 	public String getFolder() {
 		return outFolder;
 	}
+	
+	/**
+	 * @return Необязательные настройки
+	 */
+	public DownloadSettings getSettings() {
+		return settings;
+	}
 }
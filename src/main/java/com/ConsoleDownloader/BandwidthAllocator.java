@@ -0,0 +1,251 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Иерархическое взвешенное распределение скорости: общий лимит (-l),
+ * лимит каждого хоста (--host-speed) и веса файлов (weight=N в файле ссылок).
+ * Вся загрузка, каждый хост и каждый файл - узлы дерева со своим token bucket.
+ * Поток загрузки забирает байты из узла файла, затем хоста, затем общего,
+ * поэтому общий лимит и лимит хоста соблюдаются всегда.
+ * Раз в PERIOD мс скорости узлов пересчитываются заполнением уровня:
+ * емкость родителя делится между детьми пропорционально весам, а ребенок,
+ * которого не тормозили (ему хватает и меньшей скорости), получает столько,
+ * сколько качает, с запасом; остаток делится между остальными.
+ * Так доля простаивающих файлов и хостов достается занятым.
+ */
+class BandwidthAllocator implements Runnable {
+	private static final long NANOS = 1000000000L;
+	private static final long PERIOD = 500;				//Период пересчета, мс
+	private static final double HEADROOM = 1.25;		//Запас к скорости незаторможенного узла
+	private static final long MIN_RATE = 1024;			//Мин. выделяемая узлу скорость, байт/сек
+	private static final long UNLIMITED = Long.MAX_VALUE;
+
+	private RateNode global;							//Корень: вся загрузка
+	private long hostRate;								//Лимит каждого хоста, 0 - без ограничения
+	private Map<String, RateNode> hosts;				//Хост -> его узел
+	private ScheduledExecutorService timer;
+	private long lastNanos;								//Время прошлого пересчета
+
+	/**
+	 * @param globalRate общий лимит, байт/сек, 0 - без ограничения
+	 * @param hostRate лимит каждого хоста, байт/сек, 0 - без ограничения
+	 */
+	BandwidthAllocator(long globalRate, long hostRate) {
+		global = new RateNode(null, globalRate, 1);
+		this.hostRate = hostRate;
+		hosts = new HashMap<String, RateNode>();
+		lastNanos = System.nanoTime();
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thrd = new Thread(task, "bandwidth");
+				thrd.setDaemon(true);
+				return thrd;
+			}
+		});
+		timer.scheduleAtFixedRate(this, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Создает узел файла
+	 * @param host хост url
+	 * @param weight вес файла
+	 */
+	synchronized RateNode file(String host, int weight) {
+		RateNode hostNode = hosts.get(host);
+		if (hostNode == null) {
+			hostNode = new RateNode(global, hostRate, 1);
+			hostNode.bucket.setRate(hostRate);
+			hosts.put(host, hostNode);
+		}
+		RateNode file = new RateNode(hostNode, 0, weight);
+		hostNode.children.add(file);
+		return file;
+	}
+
+	/**
+	 * Убирает узел загруженного файла, его доля перейдет остальным
+	 */
+	synchronized void release(RateNode file) {
+		file.parent.children.remove(file);
+	}
+
+	/**
+	 * Меняет общий лимит на лету
+	 * @param rate байт/сек, 0 - без ограничения
+	 */
+	synchronized void setGlobalRate(long rate) {
+		global.cap = rate;
+		global.bucket.setRate(rate);
+	}
+
+	/**
+	 * @return Общий лимит, байт/сек
+	 */
+	long getGlobalRate() {
+		return global.cap;
+	}
+
+	/**
+	 * Периодический пересчет скоростей
+	 */
+	public void run() {
+		allocate();
+	}
+
+	synchronized void allocate() {
+		long now = System.nanoTime();
+		long elapsed = Math.max(now - lastNanos, 1);
+		lastNanos = now;
+		global.measure(elapsed);
+		List<RateNode> active = new ArrayList<RateNode>();
+		for (RateNode host: hosts.values()) {
+			long demand = 0;
+			int weight = 0;
+			for (RateNode file: host.children) {
+				file.measure(elapsed);
+				demand = sum(demand, file.demand);
+				weight += file.weight;
+			}
+			host.measure(elapsed);
+			host.demand = host.cap > 0 ? Math.min(demand, host.cap) : demand;
+			host.weight = weight;
+			if (weight > 0)
+				active.add(host);
+		}
+
+		if (global.cap <= 0) {								//Общего лимита нет - делим только лимиты хостов
+			for (RateNode host: hosts.values())				//Доля от снятого на лету общего лимита больше не действует
+				host.bucket.setRate(host.cap);
+			for (RateNode host: active)
+				share(host.cap, host.children);
+			return;
+		}
+		fill(global.cap, active);
+		for (RateNode host: active) {
+			host.bucket.setRate(host.allocated);
+			share(host.allocated, host.children);
+		}
+	}
+
+	/**
+	 * Делит скорость между файлами хоста, 0 - файлы без своего лимита
+	 */
+	private void share(long capacity, List<RateNode> files) {
+		if (capacity <= 0) {
+			for (RateNode file: files)
+				file.bucket.setRate(0);
+			return;
+		}
+		List<RateNode> list = new ArrayList<RateNode>(files);
+		fill(capacity, list);
+		for (RateNode file: list)
+			file.bucket.setRate(file.allocated);
+	}
+
+	/**
+	 * Заполнение уровня: делит capacity между узлами пропорционально весам,
+	 * узлу, которому нужно меньше доли, дается нужное, остаток делится заново
+	 */
+	static void fill(long capacity, List<RateNode> nodes) {
+		List<RateNode> left = new ArrayList<RateNode>(nodes);
+		long remaining = capacity;
+		boolean changed = true;
+		while (changed && !left.isEmpty()) {
+			changed = false;
+			long weights = 0;
+			for (RateNode node: left)
+				weights += node.weight;
+			for (Iterator<RateNode> it = left.iterator(); it.hasNext(); ) {
+				RateNode node = it.next();
+				long fair = (long)((double)remaining * node.weight / weights);
+				if (node.demand < fair) {
+					node.allocated = Math.max(node.demand, MIN_RATE);
+					remaining -= node.demand;
+					it.remove();
+					changed = true;
+				}
+			}
+		}
+		long weights = 0;
+		for (RateNode node: left)
+			weights += node.weight;
+		for (RateNode node: left)
+			node.allocated = Math.max((long)((double)remaining * node.weight / weights), MIN_RATE);
+	}
+
+	private static long sum(long a, long b) {
+		return a > UNLIMITED - b ? UNLIMITED : a + b;
+	}
+
+	void stop() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Узел дерева: вся загрузка, хост или файл
+	 */
+	static class RateNode {
+		final TokenBucket bucket;							//Текущая скорость узла
+		final List<RateNode> children = new CopyOnWriteArrayList<RateNode>();
+		private final LongAdder bytes = new LongAdder();	//Выдано байт с прошлого пересчета
+		private final LongAdder throttled = new LongAdder();	//Долг ожидания с прошлого пересчета, байт
+		private RateNode parent;
+		private long cap;									//Собственный лимит узла, 0 - нет
+		private int weight;									//Вес узла среди соседей
+		private boolean fresh = true;						//Еще не было измерений
+		private long demand;								//Нужная узлу скорость, байт/сек
+		private long allocated;								//Выделенная скорость, байт/сек
+
+		RateNode(RateNode parent, long cap, int weight) {
+			this.parent = parent;
+			this.cap = cap;
+			this.weight = weight;
+			bucket = new TokenBucket(cap);
+		}
+
+		/**
+		 * Забирает count байт из узла и всех его предков, при необходимости засыпая.
+		 * Ожидание в любом узле отмечает как заторможенные и все узлы ниже него.
+		 * @return время ожидания в нс
+		 */
+		long acquire(long count) {
+			long slept = 0;
+			for (RateNode node = this; node != null; node = node.parent) {
+				long debt = node.bucket.take(count);
+				node.bytes.add(count);
+				if (debt == 0)
+					continue;
+				//Отмечаем до сна, чтобы долгий сон при малой скорости не скрыл от пересчета, что узел тормозят
+				for (RateNode below = this; below != node.parent; below = below.parent)
+					below.throttled.add(debt);
+				slept += node.bucket.await(debt);
+			}
+			return slept;
+		}
+
+		/**
+		 * Измеряет скорость за прошедший период. Заторможенному или новому узлу
+		 * нужна любая скорость, остальным - текущая с запасом.
+		 */
+		private void measure(long elapsed) {
+			long rate = (long)((double)bytes.sumThenReset() * NANOS / elapsed);
+			boolean busy = throttled.sumThenReset() > 0 || fresh;
+			fresh = false;
+			demand = busy ? UNLIMITED : (long)(rate * HEADROOM) + MIN_RATE;
+		}
+
+		/**
+		 * @return Выделенная при последнем пересчете скорость
+		 */
+		long getAllocated() {
+			return allocated;
+		}
+
+		void setDemand(long demand) {
+			this.demand = demand;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.ConsoleDownloader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул direct-буферов одного размера, общий для всех потоков.
+ * Буферы не выделяются заново для каждой части файла,
+ * а возвращаются в пул после записи на диск.
+ * Общий объем буферов ограничен (--buffer-memory): когда свободных нет,
+ * поток загрузки ждет, пока писатели освободят буфер, и не читает из сети,
+ * поэтому память не растет, даже если диск медленнее сети.
+ */
+class BufferPool {
+	private final int bufferSize;								//Размер буфера в байтах
+	private final ConcurrentLinkedQueue<ByteBuffer> free;		//Свободные буферы
+	private final Semaphore permits;							//Сколько буферов еще можно взять
+	private final LongAdder waitNanos;							//Суммарное время ожидания свободного буфера
+
+	/**
+	 * @param maxBuffers макс. кол-во буферов
+	 * @param waitNanos куда добавлять время ожидания свободного буфера
+	 */
+	BufferPool(int bufferSize, int maxBuffers, LongAdder waitNanos) {
+		this.bufferSize = bufferSize;
+		free = new ConcurrentLinkedQueue<ByteBuffer>();
+		permits = new Semaphore(maxBuffers);
+		this.waitNanos = waitNanos;
+	}
+
+	/**
+	 * @return Очищенный буфер из пула или новый, если свободных нет.
+	 * Если взяты все буферы, ждет, пока какой-нибудь не вернут.
+	 */
+	ByteBuffer acquire() {
+		if (!permits.tryAcquire()) {
+			long start = System.nanoTime();
+			permits.acquireUninterruptibly();
+			waitNanos.add(System.nanoTime() - start);
+		}
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Возвращает буфер в пул
+	 */
+	void release(ByteBuffer buffer) {
+		free.offer(buffer);
+		permits.release();
+	}
+
+	/**
+	 * @return Размер буфера в байтах
+	 */
+	int getBufferSize() {
+		return bufferSize;
+	}
+}
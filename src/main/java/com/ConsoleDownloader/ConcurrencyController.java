@@ -0,0 +1,191 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Подстройка кол-ва соединений на хост во время загрузки (AIMD).
+ * Раз в секунду для каждого хоста суммарная скорость сравнивается с прошлой:
+ * пока она растет, хосту добавляется одно соединение; если добавленное
+ * соединение скорость не увеличило, оно убирается. При ошибках лимит
+ * уменьшается вдвое, а при росте времени до первого байта (хост перегружен) - на четверть.
+ * Лимит хоста делится поровну между его загружаемыми файлами
+ * и запоминается за хостом до конца работы.
+ */
+class ConcurrencyController implements Runnable {
+	private static final long PERIOD = 1000;			//Период подстройки, мс
+	private static final int INITIAL = 2;				//Начальный лимит соединений нового хоста
+
+	private int maxLimit;								//Верхняя граница лимита хоста
+	private boolean adaptive;							//Подстройка включена
+	private Map<String, HostLimit> hosts;				//Хост -> его лимит
+	private ScheduledExecutorService timer;
+	private long lastNanos;								//Время прошлой подстройки
+
+	/**
+	 * @param maxLimit макс. кол-во соединений на хост
+	 * @param adaptive false - каждому файлу сразу maxLimit соединений, как раньше
+	 */
+	ConcurrencyController(int maxLimit, boolean adaptive) {
+		this.maxLimit = maxLimit;
+		this.adaptive = adaptive;
+		hosts = new HashMap<String, HostLimit>();
+		lastNanos = System.nanoTime();
+		if (adaptive) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thrd = new Thread(task, "concurrency");
+					thrd.setDaemon(true);
+					return thrd;
+				}
+			});
+			timer.scheduleAtFixedRate(this, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return Лимит хоста, создается при первом обращении
+	 */
+	synchronized HostLimit host(String name) {
+		HostLimit host = hosts.get(name);
+		if (host == null) {
+			host = new HostLimit(name, adaptive ? Math.min(INITIAL, maxLimit) : maxLimit, maxLimit);
+			hosts.put(name, host);
+		}
+		return host;
+	}
+
+	/**
+	 * Периодическая подстройка всех хостов. Период измеряется один раз
+	 * для всех хостов, чтобы в него не попадала подстройка соседей
+	 */
+	public void run() {
+		List<HostLimit> list;
+		long now = System.nanoTime();
+		long elapsed = now - lastNanos;
+		lastNanos = now;
+		synchronized (this) {
+			list = new ArrayList<HostLimit>(hosts.values());
+		}
+		for (HostLimit host: list)
+			host.adjust(elapsed);
+	}
+
+	void stop() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+}
+
+/**
+ * Измерения и лимит соединений одного хоста
+ */
+class HostLimit {
+	private static final long NANOS = 1000000000L;
+	private static final double GROWTH = 1.05;			//Прирост скорости, ради которого стоит держать лишнее соединение
+	private static final double SATURATION = 2;			//Во сколько раз растет время до первого байта у перегруженного хоста
+	private static final int HOLD = 5;					//Сколько периодов не добавлять соединения после уменьшения
+
+	final LongAdder bytes = new LongAdder();			//Загружено с прошлой подстройки
+	final LongAdder errors = new LongAdder();			//Ошибки с прошлой подстройки
+	final AtomicInteger connections = new AtomicInteger();	//Открытые соединения
+	private final LongAdder ttfbSum = new LongAdder();	//Сумма времени до первого байта, нс
+	private final LongAdder ttfbCount = new LongAdder();
+	private final List<DownloadFile> files = new CopyOnWriteArrayList<DownloadFile>();	//Загружаемые файлы хоста
+	private String name;
+	private volatile int limit;							//Текущий лимит соединений
+	private int maxLimit;
+	private long lastRate;								//Скорость за прошлый период, байт/сек
+	private long minTtfb = Long.MAX_VALUE;				//Мин. время до первого байта, нс
+	private boolean probing;							//В прошлый период добавлено соединение
+	private int hold;									//Осталось периодов без добавления
+
+	HostLimit(String name, int limit, int maxLimit) {
+		this.name = name;
+		this.limit = limit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Учитывает время до первого байта очередного соединения
+	 */
+	void connected(long ttfbNanos) {
+		if (ttfbNanos < 0)
+			return;
+		ttfbSum.add(ttfbNanos);
+		ttfbCount.increment();
+	}
+
+	void fileStarted(DownloadFile file) {
+		files.add(file);
+	}
+
+	void fileFinished(DownloadFile file) {
+		files.remove(file);
+	}
+
+	/**
+	 * @return Доля лимита на один файл
+	 */
+	int share() {
+		return Math.max(1, limit / Math.max(1, files.size()));
+	}
+
+	/**
+	 * @return Кол-во загружаемых сейчас файлов хоста
+	 */
+	int activeFiles() {
+		return files.size();
+	}
+
+	/**
+	 * @return Текущий лимит соединений хоста
+	 */
+	int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Один шаг подстройки по измерениям за прошедший период
+	 * @param elapsedNanos длина периода, нс
+	 */
+	synchronized void adjust(long elapsedNanos) {
+		long rate = bytes.sumThenReset() * NANOS / Math.max(elapsedNanos, 1);
+		long errs = errors.sumThenReset();
+		long sum = ttfbSum.sumThenReset();
+		long count = ttfbCount.sumThenReset();
+		long ttfb = count > 0 ? sum / count : -1;
+		if (ttfb > 0)
+			minTtfb = Math.min(minTtfb, ttfb);
+		if (files.isEmpty()) {								//Хост простаивает - лимит запоминаем
+			lastRate = 0;
+			probing = false;
+			return;
+		}
+
+		int next = limit;
+		if (errs > 0) {										//Хост отвечает ошибками
+			next = limit / 2;
+			hold = HOLD;
+		} else if (ttfb > minTtfb * SATURATION && rate < lastRate * GROWTH) {	//Хост перегружен
+			next = limit - Math.max(1, limit / 4);
+			hold = HOLD;
+		} else if (probing && rate < lastRate * GROWTH) {	//Лишнее соединение ничего не дало
+			next = limit - 1;
+			hold = HOLD;
+		} else if (hold > 0)
+			hold--;
+		else if (connections.get() >= limit)				//Все соединения заняты - пробуем еще одно
+			next = limit + 1;
+		next = Math.max(1, Math.min(next, maxLimit));
+		probing = next > limit;
+		lastRate = rate;
+		if (next != limit)
+			System.out.println("Host " + name + " connections " + limit + " -> " + next + ", speed=" + rate / 1024 + "k");
+		limit = next;
+		for (DownloadFile file: files)						//Доля могла измениться и от кол-ва файлов
+			file.setTarget(share());
+	}
+}
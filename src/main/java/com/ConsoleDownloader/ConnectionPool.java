@@ -0,0 +1,83 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.*;
+
+/**
+ * Пул http-соединений с ограничением кол-ва соединений на хост.
+ * Сами сокеты переиспользует keep-alive кэш HttpURLConnection:
+ * соединение возвращается в кэш, если ответ прочитан и поток закрыт
+ * (без disconnect). Свободные соединения кэш закрывает сам, по Keep-Alive
+ * сервера или через 5 секунд. Размер кэша (http.maxConnections) JDK читает
+ * один раз на процесс, поэтому его задает первый пул, если он не задан через -D.
+ * Пул следит, чтобы соединения возвращались в кэш.
+ */
+class ConnectionPool {
+	private final int maxPerHost;									//Макс. кол-во соединений на хост, 0 - без ограничения
+	private final ConcurrentHashMap<String, Semaphore> hosts;		//Разрешения на соединения для каждого хоста
+
+	/**
+	 * @param maxPerHost макс. кол-во соединений на хост, 0 - без ограничения
+	 * @param maxIdle сколько свободных соединений держать открытыми на хост
+	 */
+	ConnectionPool(int maxPerHost, int maxIdle) {
+		this.maxPerHost = maxPerHost;
+		hosts = new ConcurrentHashMap<String, Semaphore>();
+		System.setProperty("http.keepAlive", "true");
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", Integer.toString(maxIdle));
+	}
+
+	private static String hostOf(URL url) {
+		return url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+	}
+
+	/**
+	 * Открывает соединение, дожидаясь свободного места для хоста.
+	 * Соединение обязательно вернуть через release().
+	 */
+	HttpURLConnection open(URL url) throws IOException {
+		if (maxPerHost > 0) {
+			Semaphore permits = hosts.get(hostOf(url));
+			if (permits == null) {
+				hosts.putIfAbsent(hostOf(url), new Semaphore(maxPerHost, true));
+				permits = hosts.get(hostOf(url));
+			}
+			permits.acquireUninterruptibly();
+		}
+		try {
+			return (HttpURLConnection)url.openConnection();
+		} catch (IOException e) {
+			releasePermit(url);
+			throw e;
+		}
+	}
+
+	/**
+	 * Возвращает соединение. Поток ответа закрывается, а не обрывается,
+	 * чтобы сокет попал в keep-alive кэш и достался следующему запросу
+	 * @param in поток ответа, если был открыт
+	 */
+	void release(URL url, HttpURLConnection conn, Closeable in) {
+		try {
+			if (in != null)
+				in.close();
+			else {
+				InputStream error = conn.getErrorStream();				//Тело ответа с ошибкой тоже нужно дочитать
+				if (error != null)
+					error.close();
+			}
+		} catch (IOException e) {
+			conn.disconnect();
+		} finally {
+			releasePermit(url);
+		}
+	}
+
+	private void releasePermit(URL url) {
+		if (maxPerHost > 0)
+			hosts.get(hostOf(url)).release();
+	}
+}
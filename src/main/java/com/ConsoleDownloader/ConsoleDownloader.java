@@ -1,46 +1,69 @@
 package com.ConsoleDownloader;
 
-import java.util.*;
-
 public class ConsoleDownloader {
 
 	public static void main(String[] args) {
 		long timeStart = System.currentTimeMillis();	//Время старта программы
 		long bytes = 0;									//Кол-во байт
 	
-		Map<String, List<String>> listFiles;			//Для каждого url список имен, для сохранения
+		String linksFile;								//Файл ссылок: url и имя для сохранения в строке
 		int countThreads;								//Кол-во потоков
 		long speed;										//Скорость закачки в байтах.
 		String folder;									//Каталог для сохранения		
+		DownloadSettings settings;						//Необязательные настройки
 		
 		//Анализ принятых параметров
 		try {
 			AnalyzeParameters param= new AnalyzeParameters(args);
-			listFiles = param.getListFiles();
-			if (listFiles == null) {
-				return;
-			}
+			linksFile = param.getLinksFile();
 			countThreads = param.getCountThreads();
 			speed = param.getSpeed();
 			folder = param.getFolder();
+			settings = param.getSettings();
 		} catch (BadParamException e)
 		{
 			System.out.println(e);
-			System.out.println("Example usage: ConsoleDownloader [-n 5 -l 2000k -o output_folder -f links.txt]");
+			System.out.println("Example usage: ConsoleDownloader [-n 5 -l 2000k -o output_folder -f links.txt] [--host-speed 1m] [--min-chunk 64k] [--buffer-size 64k] [--buffer-memory 64m] [--writers 2] [--max-per-host 4] [--adaptive on|off] [--retries 5] [--connect-timeout 10] [--read-timeout 30] [--probe-threads 16] [--cache on|off|file] [--schedule fifo|largest|smallest|fair] [--engine threads|virtual] [--queue 1024] [--link copy|hard|symbolic|reflink] [--dedup on|off] [--compress on|off] [--progress 5] [--metrics metrics.json|metrics.prom] [--metrics-port 9100] [--daemon-port 9200] [--spool spool_folder]");
 			return;
 		}
 		System.out.println("Max speed=" + speed + ", countThreads=" + countThreads + ", folder=" + folder);
 		
-		DownLoaderFiles downloaderFiles = new DownLoaderFiles(listFiles, folder, countThreads, speed);
+		if (settings.isDaemon()) {
+			runDaemon(linksFile, folder, countThreads, speed, settings);
+			return;
+		}
+		
+		DownLoaderFiles downloaderFiles = new DownLoaderFiles(linksFile, folder, countThreads, speed, settings);
 		try {
 			downloaderFiles.thrd.join();
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		bytes = downloaderFiles.totalDownloaded;	//Всего загружено байт
+		bytes = downloaderFiles.totalDownloaded.get();	//Всего загружено байт
 		
 		long timeEnd = System.currentTimeMillis();	//
 		System.out.println("Finished after " + ((float)(timeEnd - timeStart)/1000) + " seconds. Download " + bytes + " bytes.");
 	}
+
+	/**
+	 * Режим службы: задания принимаются до остановки процесса
+	 */
+	private static void runDaemon(String linksFile, String folder, int countThreads, long speed, DownloadSettings settings) {
+		final DownloadService service = new DownloadService(countThreads, speed, settings);
+		final DownloadDaemon daemon = new DownloadDaemon(service, folder, settings);
+		if (linksFile != null)
+			daemon.submit(linksFile, folder, null);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				daemon.stop();
+				service.stop();
+			}
+		}));
+		try {
+			daemon.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
 }
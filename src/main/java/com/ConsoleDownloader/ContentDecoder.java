@@ -0,0 +1,198 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Потоковая распаковка ответа со сжатием gzip или deflate (Content-Encoding).
+ * Inflater берется из общего пула и возвращается в него при закрытии.
+ * Считает байты, пришедшие по сети, чтобы ограничение скорости
+ * учитывало сжатый размер, а не распакованный.
+ * У gzip проверяются CRC32 и размер из конца потока.
+ */
+class ContentDecoder extends InflaterInputStream {
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	static final String ACCEPT = GZIP + ", " + DEFLATE;		//Значение Accept-Encoding
+	private static final int FHCRC = 2;						//Флаги заголовка gzip
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private WireCounter wire;								//Сжатый поток из сети
+	private InflaterPool pool;								//Пул, куда вернуть Inflater
+	private boolean nowrap;									//Inflater без заголовка zlib
+	private CRC32 crc;										//CRC32 распакованных байт, только для gzip
+	private boolean eof;									//Сжатый поток закончился
+
+	private ContentDecoder(InputStream in, WireCounter wire, InflaterPool pool, boolean nowrap, boolean gzip, int size) {
+		super(in, pool.acquire(nowrap), size);
+		this.wire = wire;
+		this.pool = pool;
+		this.nowrap = nowrap;
+		if (gzip)
+			crc = new CRC32();
+	}
+
+	/**
+	 * @return true, если такое сжатие умеем распаковывать
+	 */
+	static boolean isSupported(String encoding) {
+		return encoding != null && (isGzip(encoding) || encoding.equalsIgnoreCase(DEFLATE));
+	}
+
+	private static boolean isGzip(String encoding) {
+		return encoding.equalsIgnoreCase(GZIP) || encoding.equalsIgnoreCase("x-" + GZIP);
+	}
+
+	/**
+	 * Читает заголовок сжатого потока и готовит распаковку
+	 * @param in поток ответа
+	 * @param encoding значение Content-Encoding
+	 * @param size размер буфера для сжатых данных
+	 */
+	static ContentDecoder open(InputStream in, String encoding, InflaterPool pool, int size) throws IOException {
+		WireCounter wire = new WireCounter(in);
+		if (isGzip(encoding)) {
+			readHeader(wire);
+			return new ContentDecoder(wire, wire, pool, true, true, size);
+		}
+		//deflate по стандарту - поток zlib, но некоторые серверы шлют его без заголовка
+		PushbackInputStream peek = new PushbackInputStream(wire, 2);
+		int b0 = peek.read();
+		int b1 = peek.read();
+		if (b1 == -1)
+			throw new EOFException("empty deflate stream");
+		peek.unread(b1);
+		peek.unread(b0);
+		boolean zlib = (b0 & 0x0F) == 8 && (b0 * 256 + b1) % 31 == 0;
+		return new ContentDecoder(peek, wire, pool, !zlib, false, size);
+	}
+
+	/**
+	 * Пропускает заголовок gzip (RFC 1952)
+	 */
+	private static void readHeader(InputStream in) throws IOException {
+		if (readByte(in) != 0x1f || readByte(in) != 0x8b)
+			throw new ZipException("not in gzip format");
+		if (readByte(in) != 8)
+			throw new ZipException("unsupported gzip compression method");
+		int flags = readByte(in);
+		skip(in, 6);											//MTIME, XFL, OS
+		if ((flags & FEXTRA) != 0)
+			skip(in, readByte(in) | readByte(in) << 8);
+		if ((flags & FNAME) != 0)
+			while (readByte(in) != 0)
+				;
+		if ((flags & FCOMMENT) != 0)
+			while (readByte(in) != 0)
+				;
+		if ((flags & FHCRC) != 0)
+			skip(in, 2);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException("unexpected end of gzip stream");
+		return b;
+	}
+
+	private static void skip(InputStream in, int count) throws IOException {
+		for (int i = 0; i < count; i++)
+			readByte(in);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (eof)
+			return -1;
+		int numRead = super.read(b, off, len);
+		if (numRead == -1) {
+			eof = true;
+			if (crc != null)
+				readTrailer();
+			return -1;
+		}
+		if (crc != null)
+			crc.update(b, off, numRead);
+		return numRead;
+	}
+
+	/**
+	 * Проверяет CRC32 и размер в конце потока gzip.
+	 * Начало конца потока обычно уже прочитано в буфер вместе с последними сжатыми данными.
+	 */
+	private void readTrailer() throws IOException {
+		byte[] trailer = new byte[8];
+		int have = Math.min(inf.getRemaining(), trailer.length);
+		System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, have);
+		for (int i = have; i < trailer.length; i++)
+			trailer[i] = (byte)readByte(in);
+		long expectedCrc = le32(trailer, 0);
+		long expectedSize = le32(trailer, 4);
+		if (expectedCrc != crc.getValue())
+			throw new ZipException("gzip crc mismatch");
+		if (expectedSize != (inf.getBytesWritten() & 0xffffffffL))
+			throw new ZipException("gzip size mismatch");
+	}
+
+	private static long le32(byte[] b, int off) {
+		return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24;
+	}
+
+	/**
+	 * @return Кол-во байт, пришедших по сети с прошлого вызова
+	 */
+	long takeWireBytes() {
+		return wire.take();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pool == null)
+			return;
+		try {
+			super.close();
+		} finally {
+			pool.release(inf, nowrap);
+			pool = null;
+		}
+	}
+}
+
+/**
+ * Поток, считающий прочитанные из него байты
+ */
+class WireCounter extends FilterInputStream {
+	private long count;										//Прочитано байт с прошлого take()
+
+	WireCounter(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b != -1)
+			count++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int numRead = in.read(b, off, len);
+		if (numRead > 0)
+			count += numRead;
+		return numRead;
+	}
+
+	/**
+	 * @return Кол-во байт, прочитанных с прошлого вызова
+	 */
+	long take() {
+		long taken = count;
+		count = 0;
+		return taken;
+	}
+}
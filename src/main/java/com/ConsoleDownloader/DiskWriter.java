@@ -0,0 +1,280 @@
+package com.ConsoleDownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Запись на диск в отдельных потоках. Поток загрузки отдает заполненный буфер
+ * писателю и сразу читает из сети в следующий буфер пула, поэтому медленный диск
+ * не держит сокет, а быстрый диск не ждет сети. Когда буферы пула кончаются,
+ * поток загрузки ждет, пока писатели их освободят.
+ * Все записи одного файла идут через одного писателя. Писатель забирает из очереди
+ * все накопившиеся буферы и записывает соседние диапазоны одного файла
+ * одним системным вызовом (gathering write).
+ * Записанное отмечается в журнале и в SHA-256 файла. Дочитывание SHA-256 из файла
+ * идет в отдельном потоке, чтобы писатель не задерживал записи других файлов.
+ * Неожиданная ошибка записи завершает с ошибкой только свои буферы, писатель работает дальше.
+ * Без потоков-писателей (--writers 0) буфер пишется сразу в потоке загрузки.
+ */
+class DiskWriter {
+	private static final int MAX_BATCH = 64;				//Макс. кол-во буферов за один проход писателя
+
+	private BufferPool buffers;								//Куда возвращать записанные буферы
+	private List<LinkedBlockingQueue<WriteJob>> queues;		//Очереди писателей
+	private List<Thread> threads;
+	private ExecutorService digests;						//Дочитывание SHA-256 из файла, null - в потоке загрузки
+
+	/**
+	 * @param count кол-во потоков-писателей, 0 - писать в потоке загрузки
+	 */
+	DiskWriter(int count, BufferPool buffers) {
+		this.buffers = buffers;
+		queues = new ArrayList<LinkedBlockingQueue<WriteJob>>();
+		threads = new ArrayList<Thread>();
+		for (int i = 0; i < count; i++) {
+			final LinkedBlockingQueue<WriteJob> queue = new LinkedBlockingQueue<WriteJob>();
+			Thread thrd = new Thread(new Runnable() {
+				public void run() {
+					drain(queue);
+				}
+			}, "writer-" + i);
+			thrd.setDaemon(true);
+			thrd.start();
+			queues.add(queue);
+			threads.add(thrd);
+		}
+		if (count > 0)
+			digests = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thrd = new Thread(task, "digest");
+					thrd.setDaemon(true);
+					return thrd;
+				}
+			});
+	}
+
+	/**
+	 * Ставит буфер в очередь на запись. После записи буфер возвращается в пул.
+	 */
+	void submit(WriteJob job) {
+		job.pending.add();
+		if (queues.isEmpty()) {
+			write(Collections.singletonList(job));
+			return;
+		}
+		int index = (job.file.hashCode() & Integer.MAX_VALUE) % queues.size();
+		queues.get(index).add(job);
+	}
+
+	private void drain(LinkedBlockingQueue<WriteJob> queue) {
+		List<WriteJob> batch = new ArrayList<WriteJob>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				try {
+					write(batch);
+				} catch (RuntimeException e) {					//Писатель нужен остальным файлам очереди
+					System.out.println("Error write " + e);
+					for (WriteJob job: batch)
+						finish(job, new IOException(e));
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {}						//Загрузка закончена
+	}
+
+	/**
+	 * Возвращает буфер в пул и сообщает соединению об окончании записи, один раз
+	 */
+	private void finish(WriteJob job, IOException error) {
+		if (job.finished)
+			return;
+		job.finished = true;
+		buffers.release(job.buffer);
+		job.pending.done(error);
+	}
+
+	/**
+	 * Дочитывает SHA-256 файла из файла в отдельном потоке
+	 */
+	private void catchUp(final StreamDigest digest) throws IOException {
+		if (digests != null)
+			try {
+				digests.execute(new Runnable() {
+					public void run() {
+						try {
+							digest.catchUp();
+						} catch (IOException | RuntimeException e) {
+							System.out.println("Error digest " + e);		//Недочитанное посчитает finish()
+						}
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {}			//Писатели остановлены - дочитываем сами
+		digest.catchUp();
+	}
+
+	/**
+	 * Записывает буферы, сливая соседние диапазоны одного файла
+	 */
+	private void write(List<WriteJob> batch) {
+		Map<DownloadFile, List<WriteJob>> files = new IdentityHashMap<DownloadFile, List<WriteJob>>();
+		for (WriteJob job: batch) {
+			List<WriteJob> jobs = files.get(job.file);
+			if (jobs == null) {
+				jobs = new ArrayList<WriteJob>();
+				files.put(job.file, jobs);
+			}
+			jobs.add(job);
+		}
+		for (List<WriteJob> jobs: files.values()) {
+			Collections.sort(jobs, new Comparator<WriteJob>() {
+				public int compare(WriteJob a, WriteJob b) {
+					return Long.compare(a.pos, b.pos);
+				}
+			});
+			int start = 0;
+			for (int i = 1; i <= jobs.size(); i++)
+				if (i == jobs.size() || jobs.get(i).pos != jobs.get(i - 1).end()) {
+					writeRun(jobs.subList(start, i));
+					start = i;
+				}
+		}
+	}
+
+	/**
+	 * Записывает непрерывный диапазон из нескольких буферов
+	 */
+	private void writeRun(List<WriteJob> run) {
+		WriteJob first = run.get(0);
+		long pos = first.pos;
+		long end = run.get(run.size() - 1).end();
+		IOException error = null;
+		StreamDigest claimed = null;							//Дочитать из файла после записи
+		try {
+			if (run.size() == 1) {
+				while (first.buffer.hasRemaining())
+					pos += first.channel.write(first.buffer, pos);			//Позиционная запись в общий канал
+			} else {
+				ByteBuffer[] list = new ByteBuffer[run.size()];
+				for (int i = 0; i < list.length; i++)
+					list[i] = run.get(i).buffer;
+				synchronized (first.channel) {								//Позиция канала - только у писателя этого файла
+					first.channel.position(pos);
+					while (pos < end)
+						pos += first.channel.write(list);
+				}
+			}
+			for (WriteJob job: run)
+				if (job.digest != null) {
+					job.buffer.position(0);
+					if (job.digest.update(job.buffer, job.pos))
+						claimed = job.digest;
+				}
+			first.journal.record(first.pos, end - 1);
+		} catch (IOException e) {
+			System.out.println("Error write " + first.file.getPath() + " " + e);
+			error = e;
+		} catch (RuntimeException e) {
+			System.out.println("Error write " + first.file.getPath() + " " + e);
+			error = new IOException(e);
+		}
+		if (claimed != null)									//Иначе finish() файла не дождется дочитывания
+			try {
+				catchUp(claimed);
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Error digest " + e);			//Недочитанное посчитает finish()
+			}
+		for (WriteJob job: run)
+			finish(job, error);
+	}
+
+	/**
+	 * Останавливает писателей. Вызывается, когда все файлы загружены.
+	 */
+	void stop() {
+		for (Thread thrd: threads)
+			thrd.interrupt();
+		if (digests != null)
+			digests.shutdown();									//Начатое дочитывание заканчивается
+	}
+}
+
+/**
+ * Буфер, ожидающий записи в файл
+ */
+class WriteJob {
+	final DownloadFile file;
+	final FileChannel channel;							//Канал файла на момент загрузки буфера
+	final FileJournal journal;
+	final StreamDigest digest;
+	final ByteBuffer buffer;							//Данные от position до limit
+	final long pos;										//Позиция в файле
+	final PendingWrites pending;						//Записи соединения, которое загрузило буфер
+	boolean finished;									//Буфер возвращен в пул (только в потоке записи)
+
+	WriteJob(DownloadFile file, ByteBuffer buffer, long pos, PendingWrites pending) {
+		this.file = file;
+		channel = file.getChannel();
+		journal = file.getJournal();
+		digest = file.getDigest();
+		this.buffer = buffer;
+		this.pos = pos;
+		this.pending = pending;
+	}
+
+	/**
+	 * @return Позиция за последним байтом буфера
+	 */
+	long end() {
+		return pos + buffer.remaining();
+	}
+}
+
+/**
+ * Незаконченные записи одного соединения. Соединение дожидается их,
+ * прежде чем сообщить об окончании диапазона.
+ */
+class PendingWrites {
+	private int count;									//Буферы, еще не записанные на диск
+	private IOException error;							//Первая ошибка записи
+
+	synchronized void add() {
+		count++;
+	}
+
+	synchronized void done(IOException e) {
+		count--;
+		if (error == null)
+			error = e;
+		notifyAll();
+	}
+
+	/**
+	 * @return Первая ошибка записи или null
+	 */
+	synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Ждет окончания всех записей
+	 * @return Первая ошибка записи или null
+	 */
+	synchronized IOException await() {
+		boolean interrupted = false;
+		while (count > 0)
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;								//Буферы должны вернуться в пул, ждем до конца
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return error;
+	}
+}
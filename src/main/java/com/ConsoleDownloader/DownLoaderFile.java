@@ -1,250 +1,663 @@
 package com.ConsoleDownloader;
 
 import java.util.*;
-import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
 
 /**
- * Менеджер загрузки файлов. Проходит по Map <url, filenames>
- * и загружает файл по url, используя нужное кол-во потоков
- * (если возможно)
+ * Задание загрузки: один файл ссылок и папка сохранения. Читает файл ссылок построчно
+ * и отдает каждый url на проверку в отдельный пул из probeThreads потоков,
+ * а проверенные - общему движку из countThreads потоков для загрузки
+ * частей файла (если возможно) или файла целиком.
+ * Сведения об url сохраняются в кэш, и не изменившиеся с прошлого запуска файлы
+ * не загружаются повторно.
+ * Благодаря общему движку все потоки заняты, даже если файлы мелкие
+ * или сервер не поддерживает многопоточную загрузку.
+ * Загрузка начинается, пока файл ссылок еще читается; в работе одновременно
+ * не больше queueSize url, иначе чтение ждет.
+ * Движки, пулы и лимиты берутся из DownloadService: при обычном запуске
+ * задание создает свою службу и останавливает ее в конце, а в режиме службы
+ * все задания работают на одной общей.
  */
 class DownLoaderFiles implements Runnable {
-	private static final int BLOCK_SIZE = 1024;		//Размер блока для единичного скачивания
-	private Map<String, List<String>> mapFiles;		//Карта url и имен для сохранения
+	static final String RUNNING = "running";		//Состояния задания
+	static final String FINISHED = "finished";
+
+	private DownloadService service;				//Общие ресурсы загрузки
+	private boolean ownService;						//Служба создана для этого задания и останавливается вместе с ним
+	private int id;									//Номер задания
+	private String linksFile;						//Файл ссылок
 	private String outFolder;						//Папка для сохранения
-	private int countThreads;						//Кол-во потоков
-	private long maxSpeed;							//Макс. скорость загрузки в байтах.
-	public long totalDownloaded;					//Всего загруженных байт
-	private URL url;								//Текущий url
+	public AtomicLong totalDownloaded;				//Всего загруженных байт
 	public Thread thrd;								//Поток
-	private boolean multiThread;					//Поддержка многопоточной загрузки для текущего url
-	
-	public DownLoaderFiles(Map<String, List<String>> mapFiles, String outFolder, int countThreads, long maxSpeed) {
-		this.mapFiles = mapFiles;
+	private MetadataCache cache;					//Сведения об url с прошлых запусков
+	private Semaphore queue;						//Свободные места для url в работе
+	private Map<String, DownloadFile> index;		//url в работе, для слияния повторов
+	private FinishedLinks finished;					//Обработанные url: url -> путь к файлу
+	private volatile String state;					//Состояние задания
+	private AtomicInteger filesStarted;				//Кол-во url в задании
+	private AtomicInteger filesDone;				//Загруженные url
+	private AtomicInteger filesFailed;				//Незагруженные url
+	private long timeStart;							//Время начала, мс
+	private volatile long timeEnd;					//Время окончания, мс
+
+	/**
+	 * Обычный запуск: задание со своей службой
+	 */
+	public DownLoaderFiles(String linksFile, String outFolder, int countThreads, long maxSpeed, DownloadSettings settings) {
+		this(new DownloadService(countThreads, maxSpeed, settings), true, 0, linksFile, outFolder);
+	}
+
+	/**
+	 * Задание на общей службе
+	 */
+	DownLoaderFiles(DownloadService service, int id, String linksFile, String outFolder) {
+		this(service, false, id, linksFile, outFolder);
+	}
+
+	private DownLoaderFiles(DownloadService service, boolean ownService, int id, String linksFile, String outFolder) {
+		this.service = service;
+		this.ownService = ownService;
+		this.id = id;
+		this.linksFile = linksFile;
 		this.outFolder = outFolder;
-		this.countThreads = countThreads;
-		this.maxSpeed = maxSpeed;
-		totalDownloaded = 0;
-		multiThread = false;
+		totalDownloaded = new AtomicLong(0);
+		filesStarted = new AtomicInteger(0);
+		filesDone = new AtomicInteger(0);
+		filesFailed = new AtomicInteger(0);
+		state = RUNNING;
+		timeStart = System.currentTimeMillis();
 		thrd = new Thread(this);
 		thrd.start();
 	}
-	
+
 	/**
-	 *  Проверяет текущий url на доступность и поддержку многопоточности
-	 * @param link текущий url
-	 * @return длина файла в байтах
+	 * Обработка url из файла ссылок: каждый url ставится в очередь общего движка,
+	 * как только прочитан. Повторный url не загружается второй раз,
+	 * а только добавляет имя для сохранения.
+	 * Менеджер ждет окончания загрузки каждого url.
 	 */
-	private long checkUrl(String link) {
-		try {
-			url = new URL(link);
-		} catch (MalformedURLException e) {
-			System.out.println("Error " + link + " timeout.");
+	public void run() {
+		cache = service.cache(outFolder);
+		int queueSize = getSettings().getQueueSize();
+		queue = new Semaphore(queueSize);
+		index = new HashMap<String, DownloadFile>();
+		finished = new FinishedLinks();
+		try (LinkReader reader = new LinkReader(linksFile)) {
+			Link link;
+			while ((link = reader.next()) != null)
+				addLink(link);
+		} catch (IOException e) {
+			System.out.println("Error read " + linksFile + " " + e);
 		}
-		HttpURLConnection conn = null;
-		try {
-			conn = (HttpURLConnection)url.openConnection();			//Открываем соединение
-			conn.setConnectTimeout(10000);
-			conn.setRequestProperty("Range", "bytes=0-");			//Проставляем значение поля, чтоб определить поддержку многопоточности
-			conn.connect();
-			
-			if (conn.getResponseCode() / 100 != 2) {				//Положительный ответ сервера
-				System.out.println("Error " + link + " timeout.");
-				return -1;
-			}
-			if (conn.getResponseCode() == 206)						//Поддерживает многопоточность
-				multiThread = true;
-			else  {
-				multiThread = false;
-				System.out.println(link + " multithread not supported.");
-			}
-		} catch (IOException e){
-			System.out.println("Error " + link + " " + e);			
+		queue.acquireUninterruptibly(queueSize);				//Все места свободны - все url обработаны
+		service.releaseCache(cache);
+		if (ownService)
+			service.stop();
+		index = null;											//Законченное задание в службе хранит только счетчики
+		finished = null;
+		cache = null;
+		queue = null;
+		timeEnd = System.currentTimeMillis();
+		state = FINISHED;
+	}
+
+	/**
+	 * В индексе только url в работе; закончившийся url переходит в finished,
+	 * где от него остается url, хэш и путь к файлу, без DownloadFile и его буферов
+	 */
+	private void addLink(final Link link) {
+		if (!isInside(outFolder, link.name)) {					//Имя из файла ссылок не выводит из папки задания
+			System.out.println("Error name " + link.name + " is outside " + outFolder + ", " + link.url + " skipped.");
+			filesStarted.incrementAndGet();
+			filesFailed.incrementAndGet();
+			return;
 		}
-		
-		long contentLength = conn.getContentLength();				
-		if (contentLength < 1) {									//Проверка на длину файла
-			System.out.println("Error " + link + " file_size=" + contentLength);
-			return -1;
+		long hash = LinkReader.hash(link.url);
+		DownloadFile known;
+		final String source;									//Файл уже обработан: путь или null
+		boolean done;
+		synchronized (index) {
+			known = index.get(link.url);
+			done = known == null && finished.contains(hash, link.url);
+			source = done ? finished.get(hash, link.url) : null;
 		}
-		System.out.println(link + " file_size=" + contentLength);
-		return contentLength;
+		if (known != null && known.addName(link.name))
+			return;												//Имя сохранит сам файл по окончании
+		if (done || known != null) {
+			queue.acquireUninterruptibly();						//Файл уже загружен - сохраняем копию сразу
+			final DownloadFile file = known;
+			service.submit(new Runnable() {
+				public void run() {
+					try {
+						if (file != null)
+							file.saveName(link.name);
+						else if (source == null)
+							System.out.println("Error copy " + outFolder + "/" + link.name + ". " + link.url + " not downloaded.");
+						else
+							DownloadFile.saveCopy(source, outFolder, link.name, getSettings().getLinkMode());
+					} finally {
+						queue.release();
+					}
+				}
+			});
+			return;
+		}
+		System.out.println("Link " + link.url);
+		queue.acquireUninterruptibly();
+		filesStarted.incrementAndGet();
+		DownloadFile file = new DownloadFile(this, link.url, link.name);
+		file.setWeight(link.getWeight());
+		file.setExpectedDigest(link.getDigest());
+		file.setMirrors(link.getMirrors());
+		synchronized (index) {
+			index.put(link.url, file);
+		}
+		final DownloadFile probed = file;
+		service.probe(new Runnable() {							//В очередь загрузки файл попадет после проверки
+			public void run() {
+				probed.preflight();
+			}
+		});
 	}
-	
+
 	/**
-	 * Возвращает кол-во потоков небходимое для загрузки файла,
-	 * учитывая его размер и ограничение на потоки
-	 * @param contentLength размер файла
-	 * @return кол-во потоков
+	 * Ставит проверенный файл в очередь общего планировщика
 	 */
-	private int calculateCountThreads(long contentLength) {
-		int count = (int) Math.ceil((float)contentLength / BLOCK_SIZE);
-		if (count > countThreads) 
-			count = countThreads;
-		if (!multiThread)
-			count =1;
-		return count;
+	void schedule(DownloadFile file) {
+		service.schedule(file);
 	}
-	
-	private long calculateSizeOfPart(long contentLength, int curCountThreads) {
-		if (multiThread)
-			return (long)Math.ceil((float)contentLength / curCountThreads);
-		else
-			return contentLength;
+
+	/**
+	 * Ставит задачу в очередь общего движка
+	 */
+	void submit(Runnable task) {
+		service.submit(task);
 	}
-	
+
 	/**
-	 * Обработка Url из mapFiles и создание потоков
+	 * @return true, если имя относительное и после разбора '..' остается внутри папки
 	 */
-	public void run() {
-		for(Map.Entry<String, List<String>> entry: mapFiles.entrySet()) {
-			System.out.println("Link " + entry.getKey());
-			createThreads(entry.getKey(), entry.getValue());
-			saveOtherNames(entry.getValue());
+	static boolean isInside(String folder, String name) {
+		try {
+			Path path = Paths.get(name);
+			if (name.isEmpty() || path.isAbsolute() || path.getRoot() != null)
+				return false;
+			Path root = Paths.get(folder).toAbsolutePath().normalize();
+			Path file = root.resolve(path).normalize();
+			return file.startsWith(root) && !file.equals(root);
+		} catch (InvalidPathException e) {
+			return false;
 		}
 	}
-	
-	private void createThreads(String strUrl, List<String> listOfNames) {
-		long contentLength = checkUrl(strUrl);
-		if (contentLength  < 0)
-			return;
-			
-		int curCountThreads = calculateCountThreads(contentLength);
-		long partSize = calculateSizeOfPart(contentLength, curCountThreads);	
-		System.out.println(strUrl + " countThreads=" + curCountThreads + " part_size=" + partSize);		
-		
-		//Устанавливаем настройки для потоков, качающих файл по текущем url
-		DownloadThread.url = url;
-		DownloadThread.fileName = listOfNames.get(0);
-		DownloadThread.outFolder = outFolder;
-		DownloadThread.block_size = BLOCK_SIZE;
-		DownloadThread.maxSpeed = maxSpeed;
-		DownloadThread.countThreads = curCountThreads;
-		DownloadThread.speed = maxSpeed / countThreads;
-		
-		//Создаем потоки, указывая им необходимый диапазон загрузки файла
-		List<DownloadThread> listThreads = new ArrayList<DownloadThread>();
-		for(int i=0; i < curCountThreads; i++) {
-			long startByte = i*partSize;
-			long endByte = (i+1)*partSize - 1;
-			//System.out.println("Start=" + startByte + " endByte=" + endByte);
-			listThreads.add(new DownloadThread(startByte, endByte));
-		}
-		
-		//Ждем завершения каждого потока
-		for(DownloadThread dThread: listThreads) {					
-			try {
-				dThread.thrd.join();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+	/**
+	 * Вызывается, когда обработка url закончена (успешно или нет)
+	 * @param downloaded кол-во байт, загруженных по url
+	 * @param success true, если файл загружен
+	 */
+	void fileFinished(DownloadFile file, long downloaded, boolean success) {
+		String link = file.getLink();
+		synchronized (index) {
+			if (index.get(link) == file) {
+				index.remove(link);
+				finished.put(LinkReader.hash(link), link, success ? file.getPath() : null);
 			}
-			totalDownloaded += dThread.downloaded;		//Запоминаем сколько скачал байт
 		}
-		System.out.println(strUrl + " download finished.");
+		totalDownloaded.addAndGet(downloaded);
+		(success ? filesDone : filesFailed).incrementAndGet();
+		queue.release();
 	}
 
-	private void saveOtherNames(List<String> listOfNames) {
-		for(int i=1; i <listOfNames.size(); i++)
-			try {
-		        FileChannel srcChannel = new FileInputStream(outFolder + "/" + listOfNames.get(0)).getChannel();
-		        FileChannel dstChannel = new FileOutputStream(outFolder + "/" + listOfNames.get(i)).getChannel();
-		        dstChannel.transferFrom(srcChannel, 0, srcChannel.size());
-		        srcChannel.close();
-		        dstChannel.close();
-		        System.out.println(listOfNames.get(i) + " is saved.");
-		    } catch (IOException e) {
-		    	System.out.println("Error copy " + outFolder + "/" + listOfNames.get(i) + ". " + e);
-		    }	
-	}	
+	/**
+	 * Запоминает содержимое загруженного файла
+	 * @param digest SHA-256 содержимого
+	 * @param path путь к файлу
+	 * @return путь к первому файлу с таким содержимым
+	 */
+	String registerContent(String digest, String path) {
+		return service.registerContent(digest, path);
+	}
+
+	/**
+	 * @return Состояние задания в JSON
+	 */
+	String toJson() {
+		long end = state == FINISHED ? timeEnd : System.currentTimeMillis();
+		return "{\"id\":" + id + ",\"links\":\"" + escape(linksFile) + "\",\"folder\":\"" + escape(outFolder)
+			+ "\",\"state\":\"" + state + "\",\"files\":" + filesStarted.get() + ",\"done\":" + filesDone.get()
+			+ ",\"failed\":" + filesFailed.get() + ",\"bytes\":" + totalDownloaded.get()
+			+ ",\"seconds\":" + (end - timeStart) / 1000.0 + "}";
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * @return true, если все url задания обработаны
+	 */
+	boolean isFinished() {
+		return state == FINISHED;
+	}
+
+	/**
+	 * @return Кол-во незагруженных url
+	 */
+	int getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	/**
+	 * @return Файл ссылок задания
+	 */
+	String getLinksFile() {
+		return linksFile;
+	}
+
+	/**
+	 * @return Кол-во потоков общего движка
+	 */
+	int getCountThreads() {
+		return service.getCountThreads();
+	}
+
+	/**
+	 * @return Распределение скорости между хостами и файлами
+	 */
+	BandwidthAllocator getBandwidth() {
+		return service.getBandwidth();
+	}
+
+	/**
+	 * Меняет макс. скорость загрузки во время работы; лимит общий для всех заданий службы
+	 * @param maxSpeed скорость в байтах, 0 - без ограничения
+	 */
+	public void setMaxSpeed(long maxSpeed) {
+		service.setMaxSpeed(maxSpeed);
+	}
+
+	/**
+	 * @return Счетчики загрузки
+	 */
+	Metrics getMetrics() {
+		return service.getMetrics();
+	}
+
+	/**
+	 * @return Кэш сведений об url
+	 */
+	MetadataCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return Общий пул буферов
+	 */
+	BufferPool getBuffers() {
+		return service.getBuffers();
+	}
+
+	/**
+	 * @return Потоки записи на диск
+	 */
+	DiskWriter getWriter() {
+		return service.getWriter();
+	}
+
+	/**
+	 * @return Общий пул Inflater
+	 */
+	InflaterPool getInflaters() {
+		return service.getInflaters();
+	}
+
+	/**
+	 * @return Пул соединений
+	 */
+	ConnectionPool getConnections() {
+		return service.getConnections();
+	}
+
+	/**
+	 * @return Подстройка кол-ва соединений на хост
+	 */
+	ConcurrencyController getController() {
+		return service.getController();
+	}
+
+	/**
+	 * @return Необязательные настройки
+	 */
+	DownloadSettings getSettings() {
+		return service.getSettings();
+	}
+
+	/**
+	 * @return Каталог сохранения
+	 */
+	String getFolder() {
+		return outFolder;
+	}
 }
 
 	/**
-	* Поток, реализующий загрузку части файла по http и сохранение на диск
+	* Задача движка, реализующая загрузку части файла по http и сохранение на диск.
+	* Закончив свою часть, поток берет следующую у самого медленного соседа,
+	* а если файлу сейчас нужно меньше потоков - отдает остаток своей части и завершается.
+	* Заполненные буферы пишет на диск DiskWriter, а поток тем временем читает из сети в следующий.
+	* Записанные диапазоны отмечаются в журнале файла.
+	* После сбоя сети или временной ошибки сервера загрузка диапазона повторяется
+	* с последнего записанного байта, с экспоненциально растущей паузой со случайной добавкой.
+	* Неустранимая ошибка (файл изменился, нет доступа, ошибка записи на диск) прерывает весь файл.
+	* Каждый диапазон загружается с зеркала, которое выбирает файл; ошибка зеркала
+	* отключает его, если есть другие, и диапазон сразу продолжается с другого зеркала.
 	*/
 	class DownloadThread implements Runnable {
-		public static URL url;									//url
-		public static String fileName;							//Имя для сохранения файла
-		public static String outFolder;							//Каталог для сохранения
-		public static int block_size;							//Размер блока данных, для единичной загрузки
-		public static long maxSpeed;							//Максимальная скорость
-		public static volatile long speed;						//Скорость каждого потока, меняется от кол-ва потоков
-		public static volatile long countThreads;				//Кол-во потоков
-		
-		public long downloaded;									//Кол-во байт загруженное потоком
-		private long startByte;									//Номер байта, с которого начинается закачка
-		private long endByte;									//Номер байт, на котором заканчивается закачка
-		public Thread thrd;
-		DownloadThread(long startByte, long endByte) {
-			this.startByte = startByte;
-			this.endByte = endByte;
+		private static final long RETRY_DELAY = 500;			//Пауза перед первым повтором, мс
+		private static final long RETRY_MAX_DELAY = 30000;		//Макс. пауза между повторами, мс
+		private static final int DONE = 0;						//Диапазон загружен
+		private static final int RETRY = 1;						//Временная ошибка, можно повторить
+		private static final int FATAL = 2;						//Повторять бесполезно
+		private static final long SAMPLE_NANOS = 500000000L;	//Период измерения скорости зеркала, нс
+		private DownloadFile file;								//Файл, часть которого загружается
+		private Segment segment;								//Текущий загружаемый диапазон
+		private long downloaded;								//Кол-во байт загруженное потоком
+		private boolean released;								//Поток отдал свою часть другим
+		private long retryAfter;								//Пауза, которую попросил сервер (Retry-After), мс
+		private boolean switched;								//Зеркало отключено, повторить можно сразу с другого
+		DownloadThread(DownloadFile file, Segment segment) {
+			this.file = file;
+			this.segment = segment;
 			downloaded = 0;
-			thrd = new Thread(this);
-			thrd.start();
 		}
 
 		public void run() {
-			BufferedInputStream in = null;
-			RandomAccessFile raf= null;
+			try {
+				if (segment == null)
+					segment = file.steal();
+				int attempt = 0;
+				while (segment != null) {
+					long before = downloaded;
+					int result = download(segment);
+					if (released)										//Часть отдана другим потокам
+						break;
+					if (result == DONE) {
+						attempt = 0;
+						segment = file.steal();							//Забираем работу у соседа
+						continue;
+					}
+					if (result == RETRY && segment.remaining() <= 0) {		//Ошибка уже после последнего байта
+						segment = file.steal();
+						continue;
+					}
+					if (downloaded > before)
+						attempt = 0;									//Соединение успело что-то записать
+					if (result == FATAL) {
+						file.abort();
+						break;
+					}
+					if (switched) {										//Продолжаем с другого зеркала без паузы
+						switched = false;
+						continue;
+					}
+					if (attempt >= file.getManager().getSettings().getRetries()) {
+						System.out.println("Error " + file.getLink() + " bytes " + segment.getPos() + "-" + segment.getEnd() + " failed after " + attempt + " retries");
+						break;
+					}
+					long delay = retryDelay(attempt++, retryAfter);
+					System.out.println(file.getLink() + " retry " + attempt + " from byte " + segment.getPos() + " in " + delay + "ms");
+					file.getManager().getMetrics().retries.increment();
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			} finally {
+				if (segment != null && !released)
+					file.leave();											//Завершились с ошибкой
+				file.partFinished(downloaded);								//Сообщаем файлу об окончании части
+			}
+		}
+
+		/**
+		 * Пауза перед повтором: удваивается с каждой попыткой,
+		 * половина паузы случайная, чтобы потоки не повторяли запросы одновременно
+		 * @param attempt номер попытки, начиная с 0
+		 * @param retryAfter пауза, которую попросил сервер, мс
+		 * @return пауза, мс
+		 */
+		static long retryDelay(int attempt, long retryAfter) {
+			long delay = Math.min(RETRY_DELAY << Math.min(attempt, 16), RETRY_MAX_DELAY);
+			delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			return Math.max(delay, Math.min(retryAfter, RETRY_MAX_DELAY));
+		}
+
+		/**
+		 * @return true, если ошибку с таким кодом ответа стоит повторить
+		 */
+		static boolean isRetryable(int code) {
+			return code == 408 || code == 429 || code / 100 == 5 && code != 501 && code != 505;
+		}
 
+		/**
+		 * @return Пауза из заголовка Retry-After (в секундах) в мс, 0 - если ее нет
+		 */
+		static long retryAfter(HttpURLConnection conn) {
+			String value = conn.getHeaderField("Retry-After");
+			if (value == null)
+				return 0;
 			try {
-				HttpURLConnection conn = (HttpURLConnection)url.openConnection(); 			//Открываем соединение
-				String byteRange = startByte + "-" + endByte;								//Устанавливаем диапазон закачки
-				conn.setRequestProperty("Range", "bytes=" + byteRange);
+				return Long.parseLong(value.trim()) * 1000;
+			} catch (NumberFormatException e) {					//Дата вместо секунд - обходимся своей паузой
+				return 0;
+			}
+		}
+
+		/**
+		 * Ошибка зеркала: после неустранимой ошибки, зависания или нескольких
+		 * временных ошибок подряд зеркало отключается, если есть другие
+		 * @param drop отключить зеркало сразу
+		 * @param result результат, если зеркало не отключено
+		 * @return RETRY, если диапазон можно продолжить с другого зеркала, иначе result
+		 */
+		private int mirrorError(Mirror mirror, boolean drop, int result, String reason) {
+			if ((drop || mirror.failed()) && file.dropMirror(mirror, reason)) {
+				switched = true;
+				return RETRY;
+			}
+			return result;
+		}
+
+		/**
+		 * Загружает диапазон, пока он не кончится или не будет сокращен другим потоком
+		 * @return DONE, RETRY или FATAL
+		 */
+		private int download(Segment segment) {
+			ConnectionPool connections = file.getManager().getConnections();
+			Metrics metrics = file.getManager().getMetrics();
+			FileMetrics fileMetrics = file.getMetrics();
+			HostLimit host = file.getHost();
+			long timeStart = System.nanoTime();
+			long timeFirstByte = -1;								//Время до первого байта
+			long connBytes = 0;										//Загружено по этому соединению
+			HttpURLConnection conn = null;
+			ReadableByteChannel in = null;
+			ContentDecoder decoder = null;							//Распаковка, если файл идет сжатым
+			BufferPool buffers = file.getManager().getBuffers();
+			DiskWriter writer = file.getManager().getWriter();
+			PendingWrites pending = new PendingWrites();			//Буферы, отданные на запись
+			ByteBuffer buffer = null;								//Берется только с открытым соединением
+			long writePos = segment.getPos();						//Продолжаем с последнего записанного байта
+			Mirror mirror = file.pickMirror();						//Откуда загружать диапазон
+			switched = false;
+			URL url = mirror.url;
+			long sampleStart = timeStart;							//Начало текущего измерения скорости
+			long sampleBytes = 0;
+
+			try {
+				metrics.connections.incrementAndGet();
+				host.connections.incrementAndGet();
+				fileMetrics.connections.incrementAndGet();
+				DownloadSettings settings = file.getManager().getSettings();
+				conn = connections.open(url); 											//Открываем соединение
+				timeStart = System.nanoTime();											//Ожидание лимита хоста в open() - не время ответа
+				sampleStart = timeStart;
+				conn.setConnectTimeout(settings.getConnectTimeout() * 1000);
+				conn.setReadTimeout(settings.getReadTimeout() * 1000);
+				String encoding = writePos == 0 ? file.getEncoding() : null;			//Сжатие - только для всего файла с начала
+				if (encoding != null)
+					conn.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT);
+				else {
+					String byteRange = writePos + "-" + segment.getEnd();				//Устанавливаем диапазон закачки
+					conn.setRequestProperty("Range", "bytes=" + byteRange);
+					if (mirror.getValidator() != null)
+						conn.setRequestProperty("If-Range", mirror.getValidator());			//Если файл изменился, сервер вернет 200
+				}
 				conn.connect();
-				if (conn.getResponseCode() / 100 != 2) {
-					System.out.println("Error " + url.getPath() + " " + conn.getResponseCode());
-					return;
+				int code = conn.getResponseCode();
+				if (code / 100 != 2) {
+					System.out.println("Error " + url.getPath() + " " + code);
+					metrics.errors.increment();
+					host.errors.increment();
+					retryAfter = retryAfter(conn);
+					return isRetryable(code) ? mirrorError(mirror, false, RETRY, "status " + code) : mirrorError(mirror, true, FATAL, "status " + code);
 				}
-				
-				in = new BufferedInputStream(conn.getInputStream());
-				raf = new RandomAccessFile(outFolder + "/" + fileName, "rw");
-				raf.seek(startByte);
-					
-				byte data[] = new byte[block_size];
-				int numRead = 0;
-				long timeStart= System.currentTimeMillis();
-				long timeEnd;
-				long leftBytes = speed;									//Оставшееся кол-во байт за данную секунду
-				while((numRead = in.read(data, 0, block_size)) != -1 )
-				{
-					raf.write(data,0,numRead);
-					downloaded += numRead;								//Обновляем кол-во загруженных байт
-					leftBytes -= numRead;								
-			        if (leftBytes < 1) {								//В данную секунду, загрузили положенное кол-во байт
-			        	timeEnd = System.currentTimeMillis();
-			        	if (timeEnd - timeStart < 1000)					//Секунда не закончена
-				        	try {
-								thrd.sleep(1000 - (timeEnd - timeStart));//Засыпаем до окончания данной секунды
-							} catch (InterruptedException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-			        	timeStart = timeEnd;
-			        	leftBytes = speed;								//Обновляем кол-во байт для закачки в след секунду
-			        }
-						
+				if (encoding == null && !file.isPrimary(mirror)) {
+					String mismatch = code != 206 ? "range ignored" : file.crossCheck(mirror, conn);
+					if (mismatch != null) {
+						System.out.println("Error " + url + " " + mismatch);
+						conn.disconnect();									//Ответ не нужен
+						metrics.errors.increment();
+						return mirrorError(mirror, true, FATAL, mismatch);
+					}
 				}
+
+				//Буфер - только после open(): поток, ждущий соединения хоста, не должен
+				//держать буфер, которого ждут потоки с соединениями
+				buffer = buffers.acquire();
+				BandwidthAllocator.RateNode limiter = mirror.getShaper();
+				String contentEncoding = conn.getContentEncoding();
+				if (encoding != null && ContentDecoder.isSupported(contentEncoding)) {
+					decoder = ContentDecoder.open(conn.getInputStream(), contentEncoding, file.getManager().getInflaters(), buffer.capacity());
+					in = Channels.newChannel(decoder);
+				} else if (encoding != null && contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+					System.out.println("Error " + url.getPath() + " unsupported encoding " + contentEncoding);
+					file.identity();
+					return RETRY;
+				} else {
+					if (encoding != null)
+						file.identity();									//Сервер не сжал ответ - к файлу могут присоединиться другие потоки
+					in = Channels.newChannel(conn.getInputStream());
+				}
+
+				if (code != 206 && writePos != 0) {										//Сервер вернул не диапазон, а весь файл
+					if (file.isMultiThread() || !mirror.isSameVersion(conn)) {
+						System.out.println("Error " + url.getPath() + " range ignored, file changed?");
+						metrics.errors.increment();
+						host.errors.increment();
+						return FATAL;
+					}
+					//Сервер не умеет диапазоны: пропускаем уже записанное начало файла
+					long skip = writePos;
+					while (skip > 0) {
+						buffer.limit((int)Math.min(buffer.capacity(), skip));
+						int numRead = in.read(buffer);
+						if (numRead == -1)
+							throw new EOFException("connection closed at byte " + (writePos - skip));
+						metrics.throttledNanos.add(limiter.acquire(numRead));
+						skip -= numRead;
+						buffer.clear();
+					}
+				}
+
+				boolean eof = false;
+				while (!eof) {
+					//Заполняем буфер целиком, чтобы писать на диск крупными блоками
+					while (buffer.hasRemaining()) {
+						int numRead = in.read(buffer);
+						if (numRead == -1) {
+							eof = true;
+							break;
+						}
+						if (timeFirstByte < 0)
+							timeFirstByte = System.nanoTime() - timeStart;
+						long wire = decoder != null ? decoder.takeWireBytes() : numRead;	//Лимит считает байты по сети, а не распакованные
+						metrics.throttledNanos.add(limiter.acquire(wire));	//Ждем, если лимит файла, хоста или общий исчерпан
+						sampleBytes += numRead;
+						long now = System.nanoTime();
+						if (now - sampleStart >= SAMPLE_NANOS) {				//Скорость зеркала - для раздачи диапазонов
+							file.measured(mirror, sampleBytes, now - sampleStart);
+							mirror.succeeded();								//Ответ, оборванный раньше, считается ошибкой подряд
+							sampleStart = now;
+							sampleBytes = 0;
+						}
+						if (mirror.isDropped())
+							break;
+					}
+					buffer.flip();
+					int allowed = segment.reserve(buffer.remaining());		//Диапазон мог сократиться
+					buffer.limit(allowed);
+					if (allowed > 0) {
+						writer.submit(new WriteJob(file, buffer, writePos, pending));	//Пишем на диск, не задерживая чтение
+						writePos += allowed;
+						buffer = buffers.acquire();						//Ждет, если все буферы пула заняты
+					} else
+						buffer.clear();
+					if (pending.getError() != null) {					//Ошибка записи на диск - неустранимая
+						pending.await();
+						return FATAL;
+					}
+					downloaded += allowed;								//Обновляем кол-во загруженных байт
+					connBytes += allowed;
+					metrics.bytes.add(allowed);
+					host.bytes.add(allowed);
+					fileMetrics.bytes.add(allowed);
+					if (segment.remaining() <= 0 || file.isAborted())
+						break;
+					if (mirror.isDropped()) {								//Остаток диапазона загрузим с другого зеркала
+						switched = true;
+						return pending.await() == null ? RETRY : FATAL;
+					}
+					if (eof)												//Сервер оборвал ответ раньше конца диапазона
+						throw new EOFException("connection closed at byte " + writePos);
+					if (file.release(segment)) {							//Файлу хватит и меньшего кол-ва потоков
+						released = true;
+						break;
+					}
+				}
+				mirror.succeeded();											//Диапазон или его часть загружены без ошибок
+				return pending.await() == null ? DONE : FATAL;
 			} catch (IOException e) {
-				System.out.println("Error " + e);
+				System.out.println("Error " + url.getPath() + " " + e);
+				metrics.errors.increment();
+				host.errors.increment();
+				if (decoder != null)
+					file.identity();										//Повтор - обычными диапазонами
+				if (pending.await() != null)
+					return FATAL;
+				return mirrorError(mirror, e instanceof SocketTimeoutException, RETRY, e.toString());	//Зависшее зеркало отключается сразу
 			} finally {
-				try {
-					raf.close();
-				} catch (IOException e) {
-					System.out.println("Error close " + raf.toString());
-				}
-				if (in != null) {
-					try {
-					in.close();
-					} catch (IOException e) {}
+				pending.await();											//Диапазон отмечается в журнале после записи
+				metrics.connections.decrementAndGet();
+				host.connections.decrementAndGet();
+				host.connected(timeFirstByte);
+				fileMetrics.connections.decrementAndGet();
+				metrics.connectionFinished(timeFirstByte, connBytes, System.nanoTime() - timeStart);
+				if (buffer != null)
+					buffers.release(buffer);
+				mirror.connections.decrementAndGet();
+				if (conn != null)
+					connections.release(url, conn, in);								//Соединение вернется в keep-alive кэш
 			}
-			countThreads--;												//Кол-во качающих потоков уменшаем
-			if (countThreads > 0)
-				speed = maxSpeed / countThreads;						//Пересчитываем скорость для потока
 		}
 	}
-}
\ No newline at end of file
@@ -0,0 +1,373 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Режим службы: процесс не завершается после одного файла ссылок,
+ * а принимает задания, пока его не остановят. Все задания работают
+ * на одной DownloadService, поэтому соединения, кэш и настройки
+ * хостов не теряются между заданиями.
+ * Задания принимаются на локальном порту (--daemon-port):
+ * POST /jobs?folder=папка с файлом ссылок в теле (или ?file=путь к файлу ссылок),
+ * GET /jobs - все задания, GET /jobs/номер - одно задание,
+ * GET /speed - общий лимит скорости, POST /speed?limit=байт/сек - новый лимит на лету (0 - без ограничения).
+ * Порт без авторизации, поэтому папка задания - только внутри -o,
+ * файл ссылок - только внутри -o или spool, имена файлов - только внутри папки задания,
+ * тело - не больше MAX_BODY, а запросы с заголовком Origin (из браузера) отклоняются.
+ * Служба помнит не больше MAX_FINISHED законченных заданий, старые забываются.
+ * Из папки --spool берется каждый новый файл: на время загрузки он переименовывается
+ * в *.working, а потом в *.done или, если часть url не загружена, в *.failed.
+ */
+class DownloadDaemon implements Runnable {
+	static final String WORKING = ".working";			//Суффиксы файлов ссылок в папке spool
+	static final String DONE = ".done";
+	static final String FAILED = ".failed";
+	static final String TMP = ".tmp";					//Файл еще пишется, не брать
+	private static final int POLL_INTERVAL = 1;			//Период проверки папки spool и заданий, сек
+	static final int MAX_FINISHED = 100;				//Сколько законченных заданий помнить
+	static final long MAX_BODY = 16*1024*1024;			//Макс. размер файла ссылок в теле POST, байт
+
+	private DownloadService service;
+	private String folder;								//Папка сохранения по умолчанию
+	private File spool;									//Папка для файлов ссылок или null
+	private Map<Integer, DownLoaderFiles> jobs;			//Все задания по номеру
+	private Map<DownLoaderFiles, File> cleanup;			//Незаконченные задания из spool и POST -> файл ссылок
+	private int lastId;									//Номер последнего задания
+	private boolean resumed;							//Файлы *.working прошлого запуска уже взяты
+	private ScheduledExecutorService timer;
+	private HttpServer server;
+	private CountDownLatch stopped;
+	private int maxFinished;							//Сколько законченных заданий помнить
+
+	/**
+	 * @param folder папка сохранения для заданий, где она не указана
+	 */
+	DownloadDaemon(DownloadService service, String folder, DownloadSettings settings) {
+		this.service = service;
+		this.folder = folder;
+		spool = settings.getSpool() == null ? null : new File(settings.getSpool());
+		jobs = new LinkedHashMap<Integer, DownLoaderFiles>();
+		cleanup = new HashMap<DownLoaderFiles, File>();
+		stopped = new CountDownLatch(1);
+		maxFinished = MAX_FINISHED;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thrd = new Thread(task, "daemon");
+				thrd.setDaemon(true);
+				return thrd;
+			}
+		});
+		timer.scheduleWithFixedDelay(this, 0, POLL_INTERVAL, TimeUnit.SECONDS);
+		if (settings.getDaemonPort() > 0)
+			startServer(settings.getDaemonPort());
+		if (spool != null)
+			System.out.println("Spool " + spool.getAbsolutePath());
+	}
+
+	private void startServer(int port) {
+		try {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+			server.createContext("/jobs", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						if (checkOrigin(exchange))
+							handleJobs(exchange);
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+			server.createContext("/speed", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						if (checkOrigin(exchange))
+							handleSpeed(exchange);
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+			server.start();
+			System.out.println("Jobs on http://127.0.0.1:" + port + "/jobs");
+		} catch (IOException e) {
+			System.out.println("Error daemon port " + port + " " + e);
+		}
+	}
+
+	/**
+	 * @return false, если запрос со страницы в браузере (ответ 403 уже отправлен)
+	 */
+	private static boolean checkOrigin(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestHeaders().containsKey("Origin"))
+			return true;
+		send(exchange, 403, "{\"error\":\"origin\"}");
+		return false;
+	}
+
+	private void handleSpeed(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		if (!path.equals("/speed"))
+			send(exchange, 404, "{\"error\":\"no path\"}");
+		else if (method.equals("GET"))
+			send(exchange, 200, "{\"limit\":" + service.getMaxSpeed() + "}");
+		else if (method.equals("POST")) {
+			long limit = -1;
+			try {
+				limit = Long.parseLong(parseQuery(exchange.getRequestURI().getRawQuery()).get("limit"));
+			} catch (NumberFormatException e) {}
+			if (limit < 0) {
+				send(exchange, 400, "{\"error\":\"bad limit\"}");
+				return;
+			}
+			service.setMaxSpeed(limit);
+			System.out.println("Speed limit " + limit);
+			send(exchange, 200, "{\"limit\":" + limit + "}");
+		} else
+			send(exchange, 405, "{\"error\":\"method\"}");
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		if (method.equals("POST") && path.equals("/jobs")) {
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			File root = new File(folder).getCanonicalFile();
+			File dir = resolve(root, query.containsKey("folder") ? query.get("folder") : "");
+			if (!isInside(dir, root) || !dir.isDirectory() && !dir.mkdirs()) {
+				send(exchange, 400, "{\"error\":\"bad folder\"}");
+				return;
+			}
+			String jobFolder = dir.getPath();
+			DownLoaderFiles job;
+			if (query.containsKey("file")) {
+				File links = resolve(root, query.get("file"));
+				if (!isInside(links, root) && (spool == null || !isInside(links, spool.getCanonicalFile())) || !links.canRead()) {
+					send(exchange, 400, "{\"error\":\"bad file\"}");
+					return;
+				}
+				job = submit(links.getPath(), jobFolder, null);
+			} else {
+				File links = File.createTempFile("links", ".txt");		//Тело запроса - содержимое файла ссылок
+				if (!copyBody(exchange.getRequestBody(), links)) {
+					links.delete();
+					send(exchange, 413, "{\"error\":\"body too large\"}");
+					return;
+				}
+				job = submit(links.getPath(), jobFolder, links);
+			}
+			send(exchange, 201, job.toJson());
+		} else if (method.equals("GET") && (path.equals("/jobs") || path.equals("/jobs/"))) {
+			send(exchange, 200, toJson());
+		} else if (method.equals("GET")) {
+			DownLoaderFiles job = null;
+			try {
+				job = get(Integer.parseInt(path.substring("/jobs/".length())));
+			} catch (NumberFormatException e) {}
+			if (job == null)
+				send(exchange, 404, "{\"error\":\"no job\"}");
+			else
+				send(exchange, 200, job.toJson());
+		} else
+			send(exchange, 405, "{\"error\":\"method\"}");
+	}
+
+	/**
+	 * Копирует тело запроса в файл
+	 * @return false, если тело больше MAX_BODY
+	 */
+	private static boolean copyBody(InputStream in, File file) throws IOException {
+		long total = 0;
+		byte[] buffer = new byte[64*1024];
+		try (OutputStream out = new FileOutputStream(file)) {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				total += count;
+				if (total > MAX_BODY)
+					return false;
+				out.write(buffer, 0, count);
+			}
+		}
+		return true;
+	}
+
+	private static void send(HttpExchange exchange, int code, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * @return Путь без '..' и ссылок; относительный - от папки root
+	 */
+	private static File resolve(File root, String name) throws IOException {
+		File file = new File(name);
+		if (!file.isAbsolute())
+			file = new File(root, name);
+		return file.getCanonicalFile();
+	}
+
+	/**
+	 * @return true, если путь file - это root или внутри него
+	 */
+	private static boolean isInside(File file, File root) {
+		return file.toPath().startsWith(root.toPath());
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null)
+			return params;
+		for (String pair: query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * Запускает задание на общей службе
+	 * @param linksFile файл ссылок
+	 * @param outFolder папка сохранения
+	 * @param owned файл, который нужно переименовать или удалить после задания, или null
+	 * @return Задание
+	 */
+	synchronized DownLoaderFiles submit(String linksFile, String outFolder, File owned) {
+		DownLoaderFiles job = new DownLoaderFiles(service, ++lastId, linksFile, outFolder);
+		jobs.put(lastId, job);
+		if (owned != null)
+			cleanup.put(job, owned);
+		System.out.println("Job " + lastId + " " + linksFile);
+		return job;
+	}
+
+	/**
+	 * @return Задание по номеру или null
+	 */
+	synchronized DownLoaderFiles get(int id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * @return Все задания в JSON
+	 */
+	synchronized String toJson() {
+		StringBuilder json = new StringBuilder("[");
+		for (DownLoaderFiles job: jobs.values()) {
+			if (json.length() > 1)
+				json.append(',');
+			json.append(job.toJson());
+		}
+		return json.append(']').toString();
+	}
+
+	/**
+	 * Периодическая проверка: новые файлы в папке spool и законченные задания
+	 */
+	public void run() {
+		try {
+			finishJobs();
+			if (spool != null)
+				scanSpool();
+		} catch (RuntimeException e) {
+			System.out.println("Error spool " + e);
+		}
+	}
+
+	/**
+	 * Переименовывает файлы законченных заданий из spool, удаляет временные файлы ссылок
+	 * и забывает самые старые законченные задания сверх maxFinished
+	 */
+	synchronized void finishJobs() {
+		Iterator<Map.Entry<DownLoaderFiles, File>> it = cleanup.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<DownLoaderFiles, File> entry = it.next();
+			DownLoaderFiles job = entry.getKey();
+			if (!job.isFinished())
+				continue;
+			it.remove();
+			File links = entry.getValue();
+			String name = links.getPath();
+			if (!name.endsWith(WORKING))
+				links.delete();								//Файл из POST
+			else {
+				String base = name.substring(0, name.length() - WORKING.length());
+				File result = new File(base + (job.getFilesFailed() > 0 ? FAILED : DONE));
+				if (!links.renameTo(result))
+					System.out.println("Error rename " + name);
+			}
+			System.out.println("Job finished " + job.toJson());
+		}
+		int finished = 0;
+		for (DownLoaderFiles job: jobs.values())
+			if (job.isFinished())
+				finished++;
+		Iterator<DownLoaderFiles> old = jobs.values().iterator();	//Задания по порядку номеров, старые первыми
+		while (finished > maxFinished && old.hasNext())
+			if (old.next().isFinished()) {
+				old.remove();
+				finished--;
+			}
+	}
+
+	/**
+	 * Меняет кол-во законченных заданий, которые помнит служба
+	 */
+	synchronized void setMaxFinished(int maxFinished) {
+		this.maxFinished = maxFinished;
+	}
+
+	/**
+	 * Берет в работу новые файлы ссылок из папки spool
+	 */
+	void scanSpool() {
+		File[] files = spool.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);									//Порядок по имени: можно задать очередность
+		for (File file: files) {
+			String name = file.getName();
+			if (!resumed && file.isFile() && name.endsWith(WORKING)) {
+				submit(file.getPath(), folder, file);		//Прерванное задание: загрузка продолжится по журналам
+				continue;
+			}
+			if (!file.isFile() || name.startsWith(".") || name.endsWith(WORKING) || name.endsWith(DONE)
+					|| name.endsWith(FAILED) || name.endsWith(TMP))
+				continue;
+			File working = new File(file.getPath() + WORKING);
+			if (!file.renameTo(working)) {
+				System.out.println("Error rename " + file.getPath());
+				continue;
+			}
+			submit(working.getPath(), folder, working);
+		}
+		resumed = true;
+	}
+
+	/**
+	 * Ждет остановки службы
+	 */
+	void await() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * Прекращает прием заданий
+	 */
+	void stop() {
+		timer.shutdownNow();
+		if (server != null)
+			server.stop(0);
+		stopped.countDown();
+	}
+}
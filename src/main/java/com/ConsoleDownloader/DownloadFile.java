@@ -0,0 +1,891 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Задача движка для одного url: делит проверенный файл на части
+ * и ставит их в очередь общего движка. Поток, закончивший свою часть,
+ * забирает половину самой большой оставшейся части у другого потока.
+ * Последний завершившийся поток сохраняет остальные имена
+ * и сообщает менеджеру об окончании.
+ * Загруженные диапазоны пишутся в журнал, поэтому после падения
+ * догружаются только недостающие части.
+ * Если в файле ссылок указан SHA-256, он считается во время загрузки
+ * и при несовпадении файл загружается заново.
+ * С --compress on файл, для которого сервер предлагает gzip или deflate,
+ * загружается целиком одним сжатым потоком; после сбоя, при продолжении загрузки
+ * и без сжатия на сервере - обычными диапазонами.
+ * Если у файла есть зеркала (mirror=url), диапазоны загружаются со всех сразу:
+ * соединения делятся между зеркалами пропорционально их скорости.
+ * Размер файла на зеркале сверяется с основным url, а без SHA-256 в файле ссылок -
+ * и сильный ETag. Несовпавшее, недоступное, зависшее или слишком медленное
+ * зеркало отключается, и его диапазоны догружают остальные.
+ */
+class DownloadFile implements Runnable {
+	private static final int SLOW_RATIO = 16;		//Во сколько раз зеркало может быть медленнее лучшего
+	private DownLoaderFiles manager;				//Менеджер загрузки
+	private String link;							//Текущий url в виде строки
+	private URL url;								//Текущий url
+	private List<String> listOfNames;				//Имена для сохранения
+	private boolean multiThread;					//Поддержка многопоточной загрузки для текущего url
+	private String etag;							//ETag с сервера
+	private String lastModified;					//Last-Modified с сервера
+	private FileJournal journal;					//Журнал загруженных диапазонов
+	private RandomAccessFile outFile;				//Загружаемый файл
+	private FileChannel channel;					//Общий для всех потоков канал записи в файл
+	private List<Segment> segments;					//Части файла, в том числе отнятые у других потоков
+	private LinkedList<Segment> waiting;			//Недостающие части, которые еще никто не загружает
+	private AtomicInteger partsLeft;				//Кол-во еще работающих потоков
+	private AtomicInteger running;					//Кол-во потоков, еще не отдавших свою часть
+	private volatile int target;					//Сколько потоков нужно файлу по мнению ConcurrencyController
+	private HostLimit host;							//Лимит соединений хоста
+	private List<BandwidthAllocator.RateNode> shapers;	//Узлы файла в распределении скорости, по одному на хост зеркал
+	private List<String> mirrorLinks;				//Зеркала из файла ссылок
+	private List<Mirror> mirrors;					//Основной url и зеркала, с которых идет загрузка
+	private int weight;								//Вес файла при делении скорости
+	private long downloaded;						//Кол-во загруженных байт по всем частям
+	private boolean finished;						//Загрузка закончена, имена сохранены
+	private boolean success;						//Файл загружен полностью
+	private volatile boolean aborted;				//Неустранимая ошибка, загрузка файла прервана
+	private long contentLength;						//Размер файла
+	private boolean retryable;						//Ошибку проверки url стоит повторить
+	private long retryAfter;						//Пауза, которую попросил сервер, мс
+	private boolean skipped;						//Файл не изменился с прошлого запуска
+	private FileMetrics metrics;					//Счетчики файла
+	private String expectedDigest;					//Ожидаемый SHA-256 из файла ссылок, null - не проверяется
+	private StreamDigest digest;					//SHA-256, считаемый во время загрузки
+	private String contentDigest;					//SHA-256 загруженного файла
+	private boolean refetched;						//Файл уже загружен заново после несовпадения SHA-256
+	private String encoding;						//Сжатие, которое предлагает сервер, null - нет
+	private volatile boolean compressed;			//Файл загружается одним сжатым потоком
+
+	DownloadFile(DownLoaderFiles manager, String link, String name) {
+		this.manager = manager;
+		this.link = link;
+		listOfNames = new ArrayList<String>();
+		listOfNames.add(name);
+		multiThread = false;
+		downloaded = 0;
+		segments = new ArrayList<Segment>();
+		waiting = new LinkedList<Segment>();
+		partsLeft = new AtomicInteger(0);
+		running = new AtomicInteger(0);
+		weight = 1;
+		target = Integer.MAX_VALUE;
+		mirrorLinks = Collections.emptyList();
+		mirrors = new ArrayList<Mirror>();
+	}
+
+	/**
+	 * Проверяет url, повторяя проверку после временных ошибок
+	 * @return длина файла в байтах
+	 */
+	private long checkUrl() {
+		try {
+			url = new URL(link);
+		} catch (MalformedURLException e) {
+			System.out.println("Error " + link + " " + e);
+			return -1;
+		}
+		for (int attempt = 0; ; attempt++) {
+			retryable = false;
+			retryAfter = 0;
+			long contentLength = probeUrl();
+			if (contentLength >= 0 || !retryable || attempt >= manager.getSettings().getRetries())
+				return contentLength;
+			long delay = DownloadThread.retryDelay(attempt, retryAfter);
+			System.out.println(link + " retry " + (attempt + 1) + " in " + delay + "ms");
+			manager.getMetrics().retries.increment();
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 *  Проверяет текущий url на доступность и поддержку многопоточности запросом первого байта.
+	 *  Если файл уже загружен и в кэше есть его ETag или Last-Modified, запрос условный:
+	 *  ответ 304 значит, что файл не изменился и загружать его заново не нужно.
+	 *  Условный запрос шлется, только если сохраненный файл цел: размер как в кэше,
+	 *  а при заданном SHA-256 - и содержимое.
+	 * @return длина файла в байтах
+	 */
+	private long probeUrl() {
+		DownloadSettings settings = manager.getSettings();
+		ConnectionPool connections = manager.getConnections();
+		UrlInfo cached = manager.getCache().get(link);
+		boolean conditional = cached != null && (cached.etag != null || cached.lastModified != null) && isSaved(cached.length) && isIntact();
+		HttpURLConnection conn = null;
+		long contentLength;
+		try {
+			conn = connections.open(url);							//Открываем соединение
+			conn.setConnectTimeout(settings.getConnectTimeout() * 1000);
+			conn.setReadTimeout(settings.getReadTimeout() * 1000);
+			conn.setRequestProperty("Range", "bytes=0-0");			//Проставляем значение поля, чтоб определить поддержку многопоточности
+			if (conditional) {
+				if (cached.etag != null)
+					conn.setRequestProperty("If-None-Match", cached.etag);
+				if (cached.lastModified != null)
+					conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+			}
+			conn.connect();
+
+			int code = conn.getResponseCode();
+			if (code == 304 && conditional) {						//Файл не изменился
+				connections.release(url, conn, null);
+				skipped = true;
+				multiThread = cached.ranges;
+				etag = cached.etag;
+				lastModified = cached.lastModified;
+				System.out.println(link + " not modified, skipped.");
+				return cached.length;
+			}
+			if (code / 100 != 2) {									//Положительный ответ сервера
+				System.out.println("Error " + link + " " + code);
+				retryable = DownloadThread.isRetryable(code);
+				retryAfter = DownloadThread.retryAfter(conn);
+				connections.release(url, conn, null);
+				return -1;
+			}
+			etag = conn.getHeaderField("ETag");
+			lastModified = conn.getHeaderField("Last-Modified");
+			if (code == 206) {										//Поддерживает многопоточность
+				multiThread = true;
+				contentLength = totalLength(conn.getHeaderField("Content-Range"));
+				connections.release(url, conn, conn.getInputStream());	//Ответ - один байт, соединение остается в keep-alive кэше
+			} else  {
+				multiThread = false;
+				System.out.println(link + " multithread not supported.");
+				contentLength = conn.getContentLengthLong();
+				conn.disconnect();									//Дочитывать весь файл ради keep-alive нет смысла
+				connections.release(url, conn, null);
+			}
+		} catch (IOException e){
+			System.out.println("Error " + link + " " + e);
+			retryable = true;
+			if (conn != null) {
+				conn.disconnect();
+				connections.release(url, conn, null);
+			}
+			return -1;
+		}
+
+		if (contentLength < 1) {									//Проверка на длину файла
+			System.out.println("Error " + link + " file_size=" + contentLength);
+			return -1;
+		}
+		System.out.println(link + " file_size=" + contentLength);
+		return contentLength;
+	}
+
+	/**
+	 * @param contentRange заголовок Content-Range вида "bytes 0-0/12345"
+	 * @return полный размер файла или -1, если он неизвестен
+	 */
+	static long totalLength(String contentRange) {
+		if (contentRange == null)
+			return -1;
+		try {
+			return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+		} catch (NumberFormatException e) {					//Размер "*" - неизвестен
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true, если файл уже загружен полностью: размер совпадает и журнала нет
+	 */
+	private boolean isSaved(long length) {
+		return new File(getPath()).length() == length && !FileJournal.exists(getPath());
+	}
+
+	/**
+	 * Сверяет сохраненный файл с ожидаемым SHA-256, если он задан
+	 * @return false, если файл испорчен и его нужно загрузить заново
+	 */
+	private boolean isIntact() {
+		if (expectedDigest == null)
+			return true;
+		try {
+			String actual = FileAliases.digest(Paths.get(getPath()));
+			if (expectedDigest.equals(actual))
+				return true;
+			System.out.println("Error checksum " + getPath() + " expected=" + expectedDigest + " actual=" + actual + ", downloading again.");
+		} catch (IOException e) {
+			System.out.println("Error checksum " + getPath() + " " + e);
+		}
+		return false;
+	}
+
+	/**
+	 * Предварительная проверка url в пуле проверки, до постановки в очередь загрузки.
+	 * Недоступный хост занимает поток проверки не дольше таймаутов и не держит потоки загрузки,
+	 * а файл попадает в очередь уже с известным размером.
+	 */
+	void preflight() {
+		metrics = manager.getMetrics().startFile(link, getPath());
+		contentLength = checkUrl();
+		if (contentLength < 0 || skipped) {
+			success = skipped;
+			finish();
+			return;
+		}
+		if (manager.getSettings().isCompress())
+			encoding = probeEncoding();
+		Mirror primary = new Mirror(link, url);
+		primary.setValidators(etag, lastModified);
+		mirrors.add(primary);
+		if (multiThread)											//Без диапазонов зеркала бесполезны
+			for (String mirrorLink: mirrorLinks)
+				try {
+					mirrors.add(new Mirror(mirrorLink, new URL(mirrorLink)));
+				} catch (MalformedURLException e) {
+					System.out.println("Error " + mirrorLink + " " + e);
+				}
+		if (mirrors.size() > 1)
+			System.out.println(link + " mirrors=" + (mirrors.size() - 1));
+		manager.getCache().put(link, new UrlInfo(contentLength, multiThread, etag, lastModified));
+		manager.schedule(this);
+	}
+
+	/**
+	 * Узнает запросом HEAD, отдает ли сервер файл сжатым
+	 * @return gzip или deflate, null - сервер не сжимает или не ответил
+	 */
+	private String probeEncoding() {
+		DownloadSettings settings = manager.getSettings();
+		ConnectionPool connections = manager.getConnections();
+		HttpURLConnection conn = null;
+		try {
+			conn = connections.open(url);
+			conn.setConnectTimeout(settings.getConnectTimeout() * 1000);
+			conn.setReadTimeout(settings.getReadTimeout() * 1000);
+			conn.setRequestMethod("HEAD");
+			conn.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT);
+			conn.connect();
+			String contentEncoding = conn.getResponseCode() / 100 == 2 ? conn.getContentEncoding() : null;
+			connections.release(url, conn, conn.getInputStream());
+			if (!ContentDecoder.isSupported(contentEncoding))
+				return null;
+			System.out.println(link + " compression " + contentEncoding);
+			return contentEncoding;
+		} catch (IOException e) {
+			if (conn != null) {
+				conn.disconnect();
+				connections.release(url, conn, null);
+			}
+			return null;											//Без сжатия загрузим обычными диапазонами
+		}
+	}
+
+	/**
+	 * Возвращает кол-во частей, на которое делится файл,
+	 * учитывая его размер, ограничение на потоки и долю лимита хоста
+	 * @param contentLength размер файла
+	 * @return кол-во частей
+	 */
+	private int calculateCountThreads(long contentLength) {
+		int count = (int) Math.ceil((double)contentLength / manager.getSettings().getMinChunk());
+		if (count > manager.getCountThreads())
+			count = manager.getCountThreads();
+		if (count > host.share())
+			count = host.share();
+		if (!multiThread || compressed)
+			count =1;
+		return count;
+	}
+
+	private long calculateSizeOfPart(long contentLength, int curCountThreads) {
+		if (multiThread)
+			return (long)Math.ceil((float)contentLength / curCountThreads);
+		else
+			return contentLength;
+	}
+
+	/**
+	 * Деление проверенного файла на части и постановка их в очередь общего движка
+	 */
+	public void run() {
+		host = manager.getController().host(getHostName());
+		host.fileStarted(this);
+		Map<String, BandwidthAllocator.RateNode> hosts = new LinkedHashMap<String, BandwidthAllocator.RateNode>();
+		for (Mirror mirror: mirrors) {								//Лимиты скорости - по хосту каждого зеркала
+			BandwidthAllocator.RateNode node = hosts.get(mirror.url.getHost());
+			if (node == null) {
+				node = manager.getBandwidth().file(mirror.url.getHost(), weight);
+				hosts.put(mirror.url.getHost(), node);
+			}
+			mirror.setShaper(node);
+		}
+		shapers = new ArrayList<BandwidthAllocator.RateNode>(hosts.values());
+		start();
+	}
+
+	/**
+	 * Открывает файл и журнал и запускает загрузку недостающих частей
+	 */
+	private void start() {
+		try {
+			Path path = Paths.get(getPath());
+			boolean shared = isShared(path);
+			if (shared && FileJournal.exists(getPath()))
+				System.out.println(getPath() + " is a link to another file, downloading again.");
+			if (shared || !FileJournal.exists(getPath()))
+				Files.deleteIfExists(path);							//Не переписываем на месте файл, на который могут ссылаться другие имена
+			outFile = new RandomAccessFile(getPath(), "rw");
+			channel = outFile.getChannel();
+			journal = FileJournal.open(getPath(), channel, contentLength, etag, lastModified, multiThread);
+			outFile.setLength(contentLength);						//Сразу выделяем место под весь файл
+			if (expectedDigest != null || manager.getSettings().isDedup())
+				digest = new StreamDigest(channel, contentLength);
+			compressed = encoding != null && !journal.isResumed();
+		} catch (IOException e) {
+			System.out.println("Error " + getPath() + " " + e);
+			closeFile();
+			finish();
+			return;
+		}
+
+		int curCountThreads = calculateCountThreads(contentLength);
+		List<Segment> parts = new ArrayList<Segment>();
+		if (journal.isResumed()) {
+			//Продолжаем загрузку: части - недостающие диапазоны из журнала
+			parts = journal.missing();
+			System.out.println(link + " resumed, downloaded before=" + journal.doneBytes() + " missing_parts=" + parts.size());
+		} else {
+			long partSize = calculateSizeOfPart(contentLength, curCountThreads);
+			System.out.println(link + " countThreads=" + curCountThreads + " part_size=" + partSize);
+			for(int i=0; i < curCountThreads; i++) {
+				long startByte = i*partSize;
+				long endByte = Math.min((i+1)*partSize, contentLength) - 1;
+				parts.add(new Segment(startByte, endByte));
+			}
+		}
+		if (parts.isEmpty()) {										//Файл уже загружен полностью
+			partsLeft.set(1);
+			partFinished(0);
+			return;
+		}
+
+		//Создаем потоки, указывая им необходимый диапазон загрузки файла.
+		//Лишние диапазоны ждут, пока их не заберет освободившийся поток,
+		//а потокам без диапазона сразу достанется половина чужого
+		List<DownloadThread> listThreads = new ArrayList<DownloadThread>();
+		synchronized (segments) {
+			running.set(curCountThreads);
+			partsLeft.set(curCountThreads);
+			segments.clear();
+			waiting.clear();
+			segments.addAll(parts);
+			for(int i=0; i < Math.max(parts.size(), curCountThreads); i++)
+				if (i >= parts.size())
+					listThreads.add(new DownloadThread(this, null));
+				else if (i < curCountThreads)
+					listThreads.add(new DownloadThread(this, parts.get(i)));
+				else
+					waiting.add(parts.get(i));
+		}
+		//Первую часть загружаем сразу в этом же потоке, не возвращаясь в очередь
+		for(int i=1; i < listThreads.size(); i++)
+			manager.submit(listThreads.get(i));
+		listThreads.get(0).run();
+	}
+
+	/**
+	 * @return true, если путь - символическая ссылка или у файла несколько жестких ссылок
+	 */
+	static boolean isShared(Path path) {
+		if (Files.isSymbolicLink(path))
+			return true;
+		try {
+			return (Integer)Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS) > 1;
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return false;										//Файла нет или система без unix-атрибутов
+		}
+	}
+
+	/**
+	 * Отдает недостающую часть, которую еще никто не загружает, или
+	 * отнимает вторую половину самой большой оставшейся части у медленного потока
+	 * @return новая часть или null, если делить больше нечего
+	 */
+	Segment steal() {
+		synchronized (segments) {
+			Segment next = multiThread && !compressed && !aborted ? nextSegment() : null;
+			if (next == null)
+				running.decrementAndGet();						//Поток завершается
+			return next;
+		}
+	}
+
+	private Segment nextSegment() {
+		if (!waiting.isEmpty())
+			return waiting.poll();
+		Segment largest = null;
+		for(Segment segment: segments)
+			if (largest == null || segment.remaining() > largest.remaining())
+				largest = segment;
+		if (largest == null)
+			return null;
+		Segment tail = largest.split(manager.getSettings().getMinChunk());
+		if (tail != null)
+			segments.add(tail);
+		return tail;
+	}
+
+	/**
+	 * Выбирает url для нового диапазона: соединение достается зеркалу с наибольшей
+	 * скоростью одного соединения в расчете на уже открытые соединения с ним,
+	 * поэтому кол-во соединений с зеркалом пропорционально его скорости.
+	 * Зеркало без измерений считается не медленнее лучшего, чтобы его попробовать.
+	 * Сжатый поток загружается с основного url.
+	 * @return зеркало, счетчик его соединений уже увеличен
+	 */
+	Mirror pickMirror() {
+		synchronized (mirrors) {
+			Mirror best = null;
+			double top = 0;
+			for (Mirror mirror: mirrors)
+				if (!mirror.isDropped())
+					top = Math.max(top, mirror.getRate());
+			double bestScore = -1;
+			for (Mirror mirror: mirrors) {
+				if (mirror.isDropped())
+					continue;
+				if (compressed) {
+					best = mirror;
+					break;
+				}
+				double rate = mirror.getRate() > 0 ? mirror.getRate() : Math.max(top, 1);
+				double score = rate / (mirror.connections.get() + 1);
+				if (score > bestScore) {
+					best = mirror;
+					bestScore = score;
+				}
+			}
+			best.connections.incrementAndGet();
+			return best;
+		}
+	}
+
+	/**
+	 * Отключает зеркало; его диапазоны загрузят остальные. Последний url не отключается.
+	 * @return true, если зеркало отключено
+	 */
+	boolean dropMirror(Mirror mirror, String reason) {
+		synchronized (mirrors) {
+			if (mirror.isDropped())
+				return true;
+			int alive = 0;
+			for (Mirror other: mirrors)
+				if (!other.isDropped())
+					alive++;
+			if (alive <= 1)
+				return false;
+			mirror.drop();
+		}
+		manager.getMetrics().mirrorsDropped.increment();
+		System.out.println(link + " mirror " + mirror.link + " dropped: " + reason);
+		return true;
+	}
+
+	/**
+	 * Добавляет измерение скорости зеркала. Зеркало, которое в SLOW_RATIO раз
+	 * медленнее лучшего, отключается: иначе последние диапазоны файла ждали бы только его.
+	 */
+	void measured(Mirror mirror, long bytes, long nanos) {
+		mirror.measured(bytes, nanos);
+		if (mirrors.size() < 2)
+			return;
+		double top = 0;
+		for (Mirror other: mirrors)
+			if (!other.isDropped())
+				top = Math.max(top, other.getRate());
+		if (mirror.getRate() * SLOW_RATIO < top)
+			dropMirror(mirror, "too slow, " + (long)mirror.getRate() + " bytes/s");
+	}
+
+	/**
+	 * Сверяет ответ на запрос диапазона с тем, что известно о файле: полный размер
+	 * должен совпадать, а при первом ответе зеркала - и сильный ETag, если он есть
+	 * у обоих серверов и SHA-256 файла не задан (с ним содержимое проверится само)
+	 * @return причина несовпадения или null
+	 */
+	String crossCheck(Mirror mirror, HttpURLConnection conn) {
+		long total = totalLength(conn.getHeaderField("Content-Range"));
+		if (total >= 0 && total != contentLength)
+			return "size " + total + " instead of " + contentLength;
+		if (!mirror.isChecked()) {
+			String mirrorEtag = conn.getHeaderField("ETag");
+			if (expectedDigest == null && Mirror.isStrong(etag) && Mirror.isStrong(mirrorEtag) && !etag.equals(mirrorEtag))
+				return "ETag " + mirrorEtag + " instead of " + etag;
+			mirror.setValidators(mirrorEtag, conn.getHeaderField("Last-Modified"));
+		}
+		return null;
+	}
+
+	/**
+	 * @return true, если зеркало - основной url файла
+	 */
+	boolean isPrimary(Mirror mirror) {
+		return mirror == mirrors.get(0);
+	}
+
+	/**
+	 * @return Сжатие для загрузки файла целиком или null, если файл загружается диапазонами
+	 */
+	String getEncoding() {
+		return compressed ? encoding : null;
+	}
+
+	/**
+	 * Отказ от сжатия после сбоя: остаток файла загружается обычными диапазонами,
+	 * и к нему снова могут присоединиться другие потоки
+	 */
+	void identity() {
+		compressed = false;
+	}
+
+	/**
+	 * Прерывает загрузку файла после неустранимой ошибки:
+	 * остальные потоки дописывают текущий буфер и завершаются
+	 */
+	void abort() {
+		aborted = true;
+	}
+
+	/**
+	 * @return true, если загрузка файла прервана
+	 */
+	boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Вызывается потоком, завершившимся с ошибкой, не дождавшись steal()
+	 */
+	void leave() {
+		synchronized (segments) {
+			running.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Если потоков больше, чем нужно файлу, поток отдает недогруженный остаток
+	 * своей части другим и завершается. Проверка и возврат части идут под той же
+	 * блокировкой, что и steal(), поэтому часть всегда достанется еще работающему потоку.
+	 * @return true, если поток должен завершиться
+	 */
+	boolean release(Segment segment) {
+		if (running.get() <= target || compressed)
+			return false;
+		synchronized (segments) {
+			if (running.get() <= target)
+				return false;
+			running.decrementAndGet();
+			waiting.addFirst(segment);
+			return true;
+		}
+	}
+
+	/**
+	 * Меняет нужное файлу кол-во потоков: недостающие потоки сразу ставятся в очередь
+	 * движка, лишние завершатся сами после очередного буфера
+	 * @param count кол-во потоков
+	 */
+	void setTarget(int count) {
+		target = count;
+		while (running.get() < count && addWorker())
+			;
+	}
+
+	/**
+	 * Добавляет поток, который начнет с того, что заберет часть у соседа
+	 * @return false, если файл уже загружен или делить больше нечего
+	 */
+	private boolean addWorker() {
+		if (!multiThread || compressed)
+			return false;
+		synchronized (segments) {
+			long minChunk = manager.getSettings().getMinChunk();
+			boolean work = !waiting.isEmpty();
+			for(Segment segment: segments)
+				work |= segment.remaining() >= 2*minChunk;
+			if (!work)
+				return false;
+			int cur;
+			do {
+				cur = partsLeft.get();
+				if (cur == 0)										//Последний поток уже завершил файл
+					return false;
+			} while (!partsLeft.compareAndSet(cur, cur + 1));
+			running.incrementAndGet();
+		}
+		manager.submit(new DownloadThread(this, null));
+		return true;
+	}
+
+	/**
+	 * Вызывается частью файла по окончании ее загрузки.
+	 * Последняя часть сохраняет остальные имена и сообщает менеджеру.
+	 */
+	void partFinished(long partDownloaded) {
+		synchronized (this) {
+			downloaded += partDownloaded;		//Запоминаем сколько скачал байт
+		}
+		if (partsLeft.decrementAndGet() > 0)
+			return;
+		journal.close();
+		//Итоговая проверка: записано ровно столько байт, сколько заявил сервер.
+		//Длина файла тут ничего не говорит - start() задает ее заранее
+		success = !aborted && journal.doneBytes() == contentLength;
+		if (success && digest != null)
+			success = verify();
+		closeFile();
+		if (!success && !aborted && expectedDigest != null && contentDigest != null && !refetched) {
+			System.out.println(link + " checksum mismatch, downloading again.");
+			refetched = true;
+			contentDigest = null;
+			manager.submit(new Runnable() {
+				public void run() {
+					start();
+				}
+			});
+			return;
+		}
+		if (success) {
+			System.out.println(link + " download finished.");
+			if (manager.getSettings().isDedup())
+				deduplicate();
+		} else if (aborted || contentDigest != null)
+			System.out.println(link + " download failed.");
+		else
+			System.out.println(link + " download not finished, " + journal.doneBytes() + " bytes saved for resume.");
+		finish();
+	}
+
+	/**
+	 * Досчитывает SHA-256 файла и сравнивает с ожидаемым
+	 * @return false, если SHA-256 не совпал или его не удалось посчитать
+	 */
+	private boolean verify() {
+		try {
+			contentDigest = digest.finish();
+		} catch (IOException e) {
+			System.out.println("Error checksum " + getPath() + " " + e);
+			return false;
+		} finally {
+			digest = null;
+		}
+		if (expectedDigest == null || expectedDigest.equals(contentDigest))
+			return true;
+		System.out.println("Error checksum " + link + " expected=" + expectedDigest + " actual=" + contentDigest);
+		return false;
+	}
+
+	/**
+	 * Сохраняет остальные имена и сообщает об окончании менеджеру и счетчикам
+	 */
+	private void finish() {
+		if (host != null)
+			host.fileFinished(this);
+		if (shapers != null)
+			for (BandwidthAllocator.RateNode node: shapers)
+				manager.getBandwidth().release(node);
+		saveOtherNames();
+		manager.getMetrics().finishFile(metrics, success);
+		manager.fileFinished(this, downloaded, success);
+	}
+
+	private void closeFile() {
+		if (outFile != null)
+			try {
+				outFile.close();
+			} catch (IOException e) {
+				System.out.println("Error close " + getPath() + " " + e);
+			}
+	}
+
+	/**
+	 * Добавляет еще одно имя для сохранения
+	 * @return false, если загрузка уже закончена и имя надо сохранить через saveName()
+	 */
+	synchronized boolean addName(String name) {
+		if (finished)
+			return false;
+		listOfNames.add(name);
+		return true;
+	}
+
+	/**
+	 * Сохраняет копии под остальными именами. Имена, добавленные позже,
+	 * сохраняются через saveName()
+	 */
+	private void saveOtherNames() {
+		List<String> names;
+		synchronized (this) {
+			finished = true;
+			names = new ArrayList<String>(listOfNames);
+		}
+		for(int i=1; i < names.size(); i++)
+			saveName(names.get(i));
+	}
+
+	/**
+	 * Сохраняет загруженный файл под именем name способом из --link
+	 */
+	void saveName(String name) {
+		String outFolder = manager.getFolder();
+		if (!success) {
+			System.out.println("Error copy " + outFolder + "/" + name + ". " + link + " not downloaded.");
+			return;
+		}
+		saveCopy(getPath(), outFolder, name, manager.getSettings().getLinkMode());
+	}
+
+	/**
+	 * Сохраняет загруженный файл source под именем name в папке outFolder
+	 * @param mode способ из --link
+	 */
+	static void saveCopy(String source, String outFolder, String name, String mode) {
+		try {
+			FileAliases.save(Paths.get(source), Paths.get(outFolder, name), mode);
+			System.out.println(name + " is saved.");
+		} catch (IOException e) {
+			System.out.println("Error copy " + outFolder + "/" + name + ". " + e);
+		}
+	}
+
+	/**
+	 * Если файл с таким же содержимым уже загружен по другому url,
+	 * заменяет загруженный файл ссылкой на него
+	 */
+	private void deduplicate() {
+		try {
+			Path path = Paths.get(getPath());
+			String original = manager.registerContent(contentDigest != null ? contentDigest : FileAliases.digest(path), getPath());
+			if (original.equals(getPath()))
+				return;
+			String mode = manager.getSettings().getLinkMode();
+			FileAliases.save(Paths.get(original), path, FileAliases.COPY.equals(mode) ? FileAliases.HARD : mode);
+			System.out.println(listOfNames.get(0) + " is the same as " + original + ", stored once.");
+		} catch (IOException e) {
+			System.out.println("Error dedup " + getPath() + " " + e);
+		}
+	}
+
+	/**
+	 * @return Менеджер загрузки
+	 */
+	DownLoaderFiles getManager() {
+		return manager;
+	}
+
+	/**
+	 * @return url в виде строки
+	 */
+	String getLink() {
+		return link;
+	}
+
+	/**
+	 * @return Текущий url
+	 */
+	URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * Задает вес файла при делении скорости (weight=N в файле ссылок)
+	 */
+	void setWeight(int weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * Задает зеркала файла (mirror=url в файле ссылок)
+	 */
+	void setMirrors(List<String> mirrorLinks) {
+		this.mirrorLinks = mirrorLinks;
+	}
+
+	/**
+	 * Задает ожидаемый SHA-256 файла (третий столбец файла ссылок)
+	 */
+	void setExpectedDigest(String expectedDigest) {
+		this.expectedDigest = expectedDigest;
+	}
+
+	/**
+	 * @return SHA-256, считаемый во время загрузки, или null
+	 */
+	StreamDigest getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return Имя хоста url
+	 */
+	String getHostName() {
+		return url.getHost();
+	}
+
+	/**
+	 * @return Размер файла, известный после проверки
+	 */
+	long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return Канал записи в файл
+	 */
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return Счетчики файла
+	 */
+	FileMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return Лимит соединений хоста
+	 */
+	HostLimit getHost() {
+		return host;
+	}
+
+	/**
+	 * @return Журнал загруженных диапазонов
+	 */
+	FileJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @return true, если сервер поддерживает загрузку диапазонов
+	 */
+	boolean isMultiThread() {
+		return multiThread;
+	}
+
+	/**
+	 * @return Путь к файлу, в который сохраняется загрузка
+	 */
+	String getPath() {
+		return manager.getFolder() + "/" + listOfNames.get(0);
+	}
+}
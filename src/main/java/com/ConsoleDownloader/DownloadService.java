@@ -0,0 +1,232 @@
+package com.ConsoleDownloader;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Общие для всех заданий ресурсы загрузки: движки, пулы буферов и соединений,
+ * лимиты скорости, подстройка соединений, планировщик, кэш сведений об url и счетчики.
+ * При обычном запуске служба живет, пока загружается один файл ссылок,
+ * а в режиме службы (--daemon-port, --spool) - общая для всех заданий,
+ * поэтому keep-alive соединения, прогретый JIT, кэш и подобранное кол-во
+ * соединений на хост переходят от задания к заданию.
+ */
+class DownloadService {
+	private static final String CACHE_FILE = ".downloader.cache";	//Кэш сведений об url в папке сохранения
+
+	private int countThreads;						//Кол-во потоков
+	private DownloadSettings settings;				//Необязательные настройки
+	private BandwidthAllocator bandwidth;			//Общий лимит скорости, лимиты хостов и веса файлов
+	private BufferPool buffers;						//Общий пул буферов для чтения из сети
+	private InflaterPool inflaters;					//Общий пул Inflater для распаковки сжатых ответов
+	private DiskWriter writer;						//Потоки записи на диск
+	private ConnectionPool connections;				//Пул соединений с ограничением на хост
+	private ConcurrencyController controller;		//Подстройка кол-ва соединений на хост
+	private Metrics metrics;						//Счетчики загрузки
+	private MetricsReporter reporter;				//Вывод счетчиков
+	private ExecutionEngine engine;					//Общий движок выполнения для всех url
+	private ExecutionEngine preflight;				//Отдельный движок для проверки url
+	private Scheduler scheduler;					//Порядок запуска проверенных файлов
+	private static final int MAX_CONTENTS = 10000;	//Сколько последних SHA-256 помнить для --dedup
+
+	private Map<String, MetadataCache> caches;		//Файл кэша -> кэш, один на файл для работающих заданий
+	private Map<String, String> contents;			//SHA-256 загруженных файлов -> путь, для --dedup, последние MAX_CONTENTS
+
+	DownloadService(int countThreads, long maxSpeed, DownloadSettings settings) {
+		this.countThreads = countThreads;
+		this.settings = settings;
+		bandwidth = new BandwidthAllocator(maxSpeed, settings.getHostSpeed());
+		metrics = new Metrics();
+		buffers = new BufferPool(settings.getBufferSize(), (int)Math.max(settings.getBufferMemory() / settings.getBufferSize(), 2), metrics.bufferWaitNanos);
+		writer = new DiskWriter(settings.getWriters(), buffers);
+		inflaters = new InflaterPool(countThreads);
+		connections = new ConnectionPool(settings.getMaxPerHost(), Math.max(countThreads, settings.getMaxPerHost()));
+		controller = new ConcurrencyController(settings.getMaxPerHost() > 0 ? Math.min(settings.getMaxPerHost(), countThreads) : countThreads, settings.isAdaptive());
+		engine = ExecutionEngines.create(settings.getEngine(), countThreads);
+		preflight = ExecutionEngines.create(settings.getEngine(), settings.getProbeThreads());
+		scheduler = new Scheduler(settings.getSchedule(), controller);
+		caches = new HashMap<String, MetadataCache>();
+		contents = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > MAX_CONTENTS;
+			}
+		};
+		System.out.println("Engine " + engine.getName());
+		reporter = new MetricsReporter(metrics, settings.getProgressInterval(), settings.getMetricsFile(), settings.getMetricsPort());
+	}
+
+	/**
+	 * Кэш нужно вернуть через releaseCache() по окончании задания
+	 * @param folder папка сохранения задания
+	 * @return Кэш сведений об url для этой папки (или общий из --cache file)
+	 */
+	synchronized MetadataCache cache(String folder) {
+		String fileName = null;
+		if (settings.isCache())
+			fileName = settings.getCacheFile() != null ? settings.getCacheFile() : folder + "/" + CACHE_FILE;
+		String key = fileName == null ? "" : new File(fileName).getAbsolutePath();
+		MetadataCache cache = caches.get(key);
+		if (cache == null) {
+			cache = new MetadataCache(fileName);
+			caches.put(key, cache);
+		}
+		cache.users++;
+		return cache;
+	}
+
+	/**
+	 * Сохраняет кэш законченного задания; кэш, который больше никому не нужен,
+	 * служба забывает, следующее задание прочитает его из файла
+	 */
+	synchronized void releaseCache(MetadataCache cache) {
+		cache.save();
+		if (--cache.users > 0)
+			return;
+		Iterator<MetadataCache> it = caches.values().iterator();
+		while (it.hasNext())
+			if (it.next() == cache)
+				it.remove();
+	}
+
+	/**
+	 * @return Кол-во кэшей, которые держит служба
+	 */
+	synchronized int getCacheCount() {
+		return caches.size();
+	}
+
+	/**
+	 * Ставит проверку url в очередь движка проверки
+	 */
+	void probe(Runnable task) {
+		preflight.execute(task);
+	}
+
+	/**
+	 * Ставит проверенный файл в очередь. Какой именно файл начнет загружаться,
+	 * решает планировщик в момент, когда у движка освободится поток.
+	 */
+	void schedule(DownloadFile file) {
+		scheduler.add(file);
+		engine.execute(new Runnable() {
+			public void run() {
+				scheduler.next().run();
+			}
+		});
+	}
+
+	/**
+	 * Ставит задачу в очередь общего движка
+	 */
+	void submit(Runnable task) {
+		engine.execute(task);
+	}
+
+	/**
+	 * Запоминает содержимое загруженного файла
+	 * @param digest SHA-256 содержимого
+	 * @param path путь к файлу
+	 * @return путь к первому файлу с таким содержимым
+	 */
+	synchronized String registerContent(String digest, String path) {
+		String original = contents.get(digest);
+		if (original != null && new File(original).exists())
+			return original;
+		contents.put(digest, path);
+		return path;
+	}
+
+	/**
+	 * Останавливает службу после окончания всех заданий
+	 */
+	void stop() {
+		engine.shutdown();
+		preflight.shutdown();
+		writer.stop();
+		synchronized (this) {
+			for (MetadataCache cache: caches.values())
+				cache.save();
+		}
+		controller.stop();
+		bandwidth.stop();
+		reporter.stop();
+	}
+
+	/**
+	 * @return Кол-во потоков общего движка
+	 */
+	int getCountThreads() {
+		return countThreads;
+	}
+
+	/**
+	 * @return Необязательные настройки
+	 */
+	DownloadSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return Распределение скорости между хостами и файлами
+	 */
+	BandwidthAllocator getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Меняет общий лимит скорости всех заданий во время работы
+	 * @param maxSpeed байт/сек, 0 - без ограничения
+	 */
+	void setMaxSpeed(long maxSpeed) {
+		bandwidth.setGlobalRate(maxSpeed);
+	}
+
+	/**
+	 * @return Общий лимит скорости, байт/сек, 0 - без ограничения
+	 */
+	long getMaxSpeed() {
+		return bandwidth.getGlobalRate();
+	}
+
+	/**
+	 * @return Счетчики загрузки
+	 */
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return Общий пул буферов
+	 */
+	BufferPool getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * @return Потоки записи на диск
+	 */
+	DiskWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * @return Общий пул Inflater
+	 */
+	InflaterPool getInflaters() {
+		return inflaters;
+	}
+
+	/**
+	 * @return Пул соединений
+	 */
+	ConnectionPool getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return Подстройка кол-ва соединений на хост
+	 */
+	ConcurrencyController getController() {
+		return controller;
+	}
+}
@@ -0,0 +1,303 @@
+package com.ConsoleDownloader;
+
+/**
+ * Необязательные настройки загрузки со значениями по умолчанию.
+ * Заполняются из параметров командной строки вида --name value
+ */
+class DownloadSettings {
+	private long minChunk = 64*1024;				//Мин. размер части, которую можно отнять у другого потока
+	private int bufferSize = 64*1024;				//Размер буфера для чтения из сети и записи на диск
+	private long bufferMemory = 64*1024*1024;		//Макс. объем всех буферов, байт
+	private int writers = 2;						//Кол-во потоков записи на диск, 0 - писать в потоке загрузки
+	private int maxPerHost = 0;						//Макс. кол-во соединений на хост, 0 - без ограничения
+	private long hostSpeed = 0;						//Макс. скорость загрузки с одного хоста, байт/сек, 0 - без ограничения
+	private boolean adaptive = true;				//Подстраивать кол-во соединений на хост во время загрузки
+	private int retries = 5;						//Сколько раз повторять диапазон после временной ошибки
+	private int connectTimeout = 10;				//Таймаут соединения, сек
+	private int readTimeout = 30;					//Таймаут чтения, сек
+	private int probeThreads = 16;					//Кол-во потоков предварительной проверки url
+	private boolean cache = true;					//Сохранять сведения об url между запусками
+	private String cacheFile = null;				//Файл кэша, null - в папке сохранения
+	private String schedule = Scheduler.FIFO;		//Порядок запуска файлов: fifo, largest, smallest, fair
+	private String engine = ExecutionEngines.THREADS;	//Движок выполнения: threads или virtual
+	private int queueSize = 1024;					//Макс. кол-во url в работе, пока читается файл ссылок
+	private String linkMode = FileAliases.COPY;		//Как сохранять повторные имена: copy, hard, symbolic, reflink
+	private boolean dedup = false;					//Хранить одинаковое содержимое с разных url один раз
+	private boolean compress = false;				//Просить сжатие при загрузке файла целиком
+	private int progressInterval = 5;				//Период вывода строки прогресса, сек, 0 - не выводить
+	private String metricsFile = null;				//Файл для дампа счетчиков (JSON или *.prom)
+	private int metricsPort = 0;					//Порт для http-страницы счетчиков, 0 - нет
+	private int daemonPort = 0;						//Порт для приема заданий в режиме службы, 0 - нет
+	private String spool = null;					//Папка, из которой служба берет файлы ссылок, null - нет
+
+	/**
+	 * @return Мин. размер части файла в байтах
+	 */
+	public long getMinChunk() {
+		return minChunk;
+	}
+
+	public void setMinChunk(long minChunk) {
+		this.minChunk = minChunk;
+	}
+
+	/**
+	 * @return Размер буфера в байтах
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return Макс. объем всех буферов в байтах
+	 */
+	public long getBufferMemory() {
+		return bufferMemory;
+	}
+
+	public void setBufferMemory(long bufferMemory) {
+		this.bufferMemory = bufferMemory;
+	}
+
+	/**
+	 * @return Кол-во потоков записи на диск, 0 - запись в потоке загрузки
+	 */
+	public int getWriters() {
+		return writers;
+	}
+
+	public void setWriters(int writers) {
+		this.writers = writers;
+	}
+
+	/**
+	 * @return Макс. кол-во соединений на хост, 0 - без ограничения
+	 */
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	public void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+	}
+
+	/**
+	 * @return Название движка выполнения
+	 */
+	public String getEngine() {
+		return engine;
+	}
+
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * @return Макс. кол-во url, загружаемых одновременно
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @return Способ сохранения повторных имен
+	 */
+	public String getLinkMode() {
+		return linkMode;
+	}
+
+	public void setLinkMode(String linkMode) {
+		this.linkMode = linkMode;
+	}
+
+	/**
+	 * @return true, если одинаковое содержимое хранится один раз
+	 */
+	public boolean isDedup() {
+		return dedup;
+	}
+
+	public void setDedup(boolean dedup) {
+		this.dedup = dedup;
+	}
+
+	/**
+	 * @return Кол-во повторов диапазона подряд без прогресса
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	/**
+	 * @return Макс. скорость загрузки с одного хоста в байтах/сек
+	 */
+	public long getHostSpeed() {
+		return hostSpeed;
+	}
+
+	public void setHostSpeed(long hostSpeed) {
+		this.hostSpeed = hostSpeed;
+	}
+
+	/**
+	 * @return Таймаут соединения в секундах
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return Таймаут чтения в секундах
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @return Кол-во потоков проверки url
+	 */
+	public int getProbeThreads() {
+		return probeThreads;
+	}
+
+	public void setProbeThreads(int probeThreads) {
+		this.probeThreads = probeThreads;
+	}
+
+	/**
+	 * @return true, если сведения об url сохраняются между запусками
+	 */
+	public boolean isCache() {
+		return cache;
+	}
+
+	public void setCache(boolean cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return Файл кэша или null для файла по умолчанию
+	 */
+	public String getCacheFile() {
+		return cacheFile;
+	}
+
+	public void setCacheFile(String cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * @return Политика порядка запуска файлов
+	 */
+	public String getSchedule() {
+		return schedule;
+	}
+
+	public void setSchedule(String schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * @return true, если кол-во соединений на хост подстраивается по скорости
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * @return true, если файл целиком загружается со сжатием gzip или deflate, когда сервер его предлагает
+	 */
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * @return Период вывода прогресса в секундах, 0 - не выводить
+	 */
+	public int getProgressInterval() {
+		return progressInterval;
+	}
+
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * @return Файл для дампа счетчиков или null
+	 */
+	public String getMetricsFile() {
+		return metricsFile;
+	}
+
+	public void setMetricsFile(String metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	/**
+	 * @return Порт http-страницы счетчиков, 0 - нет
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	/**
+	 * @return Порт для приема заданий в режиме службы, 0 - нет
+	 */
+	public int getDaemonPort() {
+		return daemonPort;
+	}
+
+	public void setDaemonPort(int daemonPort) {
+		this.daemonPort = daemonPort;
+	}
+
+	/**
+	 * @return Папка для файлов ссылок в режиме службы или null
+	 */
+	public String getSpool() {
+		return spool;
+	}
+
+	public void setSpool(String spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * @return true, если задан режим службы
+	 */
+	public boolean isDaemon() {
+		return daemonPort > 0 || spool != null;
+	}
+}
@@ -0,0 +1,108 @@
+package com.ConsoleDownloader;
+
+import java.util.concurrent.*;
+
+/**
+ * Движок, на котором выполняются проверки url и загрузки частей файлов.
+ * Одновременно выполняется не больше countThreads задач.
+ */
+interface ExecutionEngine {
+	/**
+	 * Ставит задачу в очередь
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Завершает движок после выполнения поставленных задач
+	 */
+	void shutdown();
+
+	/**
+	 * @return Название движка для вывода
+	 */
+	String getName();
+}
+
+/**
+ * Создание движка по названию из параметра --engine
+ */
+class ExecutionEngines {
+	static final String THREADS = "threads";			//Пул платформенных потоков
+	static final String VIRTUAL = "virtual";			//Виртуальные потоки (Java 21+)
+
+	/**
+	 * @param name название движка
+	 * @param countThreads макс. кол-во одновременно выполняемых задач
+	 * @return движок; если виртуальные потоки не поддерживаются - пул потоков
+	 */
+	static ExecutionEngine create(String name, int countThreads) {
+		if (VIRTUAL.equals(name)) {
+			try {
+				return new VirtualThreadEngine(countThreads);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads not supported by this JVM, using thread pool.");
+			}
+		}
+		return new ThreadPoolEngine(countThreads);
+	}
+}
+
+/**
+ * Фиксированный пул из countThreads платформенных потоков
+ */
+class ThreadPoolEngine implements ExecutionEngine {
+	private ExecutorService pool;
+
+	ThreadPoolEngine(int countThreads) {
+		pool = Executors.newFixedThreadPool(countThreads);
+	}
+
+	public void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public String getName() {
+		return ExecutionEngines.THREADS;
+	}
+}
+
+/**
+ * Виртуальный поток на каждую задачу. Ожидание сети и места в лимитах
+ * не занимает платформенных потоков, поэтому можно держать десятки тысяч
+ * одновременных загрузок. Кол-во выполняемых задач ограничено семафором.
+ * Создается через reflection, чтобы сборка оставалась совместимой с Java 8.
+ */
+class VirtualThreadEngine implements ExecutionEngine {
+	private ExecutorService executor;
+	private Semaphore slots;							//Свободные места для выполнения задач
+
+	VirtualThreadEngine(int countThreads) throws ReflectiveOperationException {
+		executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		slots = new Semaphore(countThreads);
+	}
+
+	public void execute(final Runnable task) {
+		executor.execute(new Runnable() {
+			public void run() {
+				slots.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					slots.release();
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public String getName() {
+		return ExecutionEngines.VIRTUAL;
+	}
+}
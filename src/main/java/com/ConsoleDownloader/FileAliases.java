@@ -0,0 +1,94 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ * Сохранение загруженного файла под другим именем без повторной записи данных:
+ * жесткой ссылкой, символической ссылкой или reflink (копия, разделяющая блоки
+ * на файловых системах с copy-on-write). Если ссылку создать нельзя,
+ * файл копируется.
+ */
+class FileAliases {
+	static final String COPY = "copy";						//Полная копия
+	static final String HARD = "hard";						//Жесткая ссылка
+	static final String SYMBOLIC = "symbolic";				//Символическая ссылка
+	static final String REFLINK = "reflink";				//Копия с общими блоками (cp --reflink)
+
+	/**
+	 * Сохраняет src под именем dst. Существующий dst заменяется.
+	 * @param mode способ: copy, hard, symbolic или reflink
+	 */
+	static void save(Path src, Path dst, String mode) throws IOException {
+		Files.deleteIfExists(dst);
+		try {
+			if (HARD.equals(mode)) {
+				Files.createLink(dst, src);
+				return;
+			}
+			if (SYMBOLIC.equals(mode)) {
+				Files.createSymbolicLink(dst, src.toAbsolutePath());
+				return;
+			}
+			if (REFLINK.equals(mode) && reflink(src, dst))
+				return;
+		} catch (IOException | UnsupportedOperationException e) {
+			System.out.println("Error " + mode + " link " + dst + ", copy instead. " + e);
+		}
+		Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * В java.nio.file нет reflink, поэтому используется cp --reflink=always
+	 * @return true, если копия создана
+	 */
+	private static boolean reflink(Path src, Path dst) throws IOException {
+		Process cp = new ProcessBuilder("cp", "--reflink=always", src.toString(), dst.toString())
+			.redirectErrorStream(true).start();
+		try (InputStream out = cp.getInputStream()) {
+			byte[] skip = new byte[1024];
+			while (out.read(skip) != -1)						//Вывод cp не нужен, но его надо прочитать, иначе cp может встать
+				;
+		}
+		try {
+			if (cp.waitFor() == 0)
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Files.deleteIfExists(dst);
+		System.out.println("Error reflink " + dst + ", copy instead.");
+		return false;
+	}
+
+	/**
+	 * @return SHA-256 содержимого файла в hex
+	 */
+	static String digest(Path file) throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				sha.update(buffer);
+				buffer.clear();
+			}
+		}
+		return toHex(sha.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b: bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,230 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Журнал загрузки файла, хранится рядом с ним (имя.journal).
+ * Содержит размер файла, ETag и Last-Modified с сервера и список
+ * загруженных диапазонов. Диапазоны дописываются пачками: сначала
+ * данные файла сбрасываются на диск, затем записи журнала,
+ * поэтому журнал никогда не ссылается на незаписанные байты.
+ * После перезапуска догружаются только недостающие диапазоны.
+ */
+class FileJournal {
+	private static final String SUFFIX = ".journal";		//Расширение файла журнала
+	private static final String MAGIC = "CDJ1";				//Заголовок формата журнала
+	private static final long FLUSH_BYTES = 4*1024*1024;	//Сброс на диск после стольких байт
+	private static final long FLUSH_TIME = 1000;			//или после стольких мс
+
+	private File file;										//Файл журнала
+	private File dataFile;									//Загружаемый файл
+	private long contentLength;								//Размер файла
+	private String etag;									//ETag с сервера
+	private String lastModified;							//Last-Modified с сервера
+	private TreeMap<Long, Long> done;						//Загруженные диапазоны: начало -> конец
+	private List<long[]> pending;							//Диапазоны, еще не записанные в журнал
+	private long pendingBytes;								//Кол-во байт в pending
+	private long lastFlush;									//Время последнего сброса
+	private boolean resumed;								//Загрузка продолжена по журналу
+	private DataOutputStream out;							//Запись в журнал
+	private FileOutputStream outFile;						//Для fsync журнала
+	private FileChannel data;								//Канал загружаемого файла, для fsync
+
+	private FileJournal(String path, FileChannel data, long contentLength, String etag, String lastModified) {
+		file = new File(path + SUFFIX);
+		dataFile = new File(path);
+		this.data = data;
+		this.contentLength = contentLength;
+		this.etag = etag == null ? "" : etag;
+		this.lastModified = lastModified == null ? "" : lastModified;
+		done = new TreeMap<Long, Long>();
+		pending = new ArrayList<long[]>();
+	}
+
+	/**
+	 * Открывает журнал файла. Если журнал уже есть и файл на сервере не изменился,
+	 * загруженные ранее диапазоны сохраняются, иначе загрузка начинается заново.
+	 * @param path путь к загружаемому файлу
+	 * @param data открытый канал загружаемого файла
+	 * @param canResume сервер поддерживает загрузку диапазонов
+	 */
+	static FileJournal open(String path, FileChannel data, long contentLength, String etag, String lastModified, boolean canResume) throws IOException {
+		FileJournal journal = new FileJournal(path, data, contentLength, etag, lastModified);
+		if (canResume && journal.file.exists() && journal.dataFile.length() > 0)
+			journal.resumed = journal.load();
+		if (!journal.resumed)
+			journal.done.clear();
+		journal.create();
+		return journal;
+	}
+
+	/**
+	 * @param path путь к загружаемому файлу
+	 * @return true, если у файла есть журнал, то есть он загружен не полностью
+	 */
+	static boolean exists(String path) {
+		return new File(path + SUFFIX).exists();
+	}
+
+	/**
+	 * Читает журнал и проверяет, что файл на сервере не изменился
+	 * @return true, если можно продолжить загрузку
+	 */
+	private boolean load() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!in.readUTF().equals(MAGIC) || in.readLong() != contentLength)
+				return false;
+			String oldEtag = in.readUTF();
+			String oldLastModified = in.readUTF();
+			if (etag.isEmpty() && lastModified.isEmpty())			//Нечем проверить, что файл тот же
+				return false;
+			if (!oldEtag.equals(etag) || !oldLastModified.equals(lastModified))
+				return false;
+			try {
+				while (true)
+					add(in.readLong(), in.readLong());
+			} catch (EOFException e) {}								//Конец журнала или оборванная запись
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error read " + file + " " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Переписывает журнал заново: заголовок и слитые диапазоны
+	 */
+	private void create() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			tmpOut.writeUTF(MAGIC);
+			tmpOut.writeLong(contentLength);
+			tmpOut.writeUTF(etag);
+			tmpOut.writeUTF(lastModified);
+			for (Map.Entry<Long, Long> range: done.entrySet()) {
+				tmpOut.writeLong(range.getKey());
+				tmpOut.writeLong(range.getValue());
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		if (!resumed)
+			data.truncate(0);									//Старое содержимое файла не нужно
+		outFile = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(outFile));
+		lastFlush = System.currentTimeMillis();
+	}
+
+	/**
+	 * Добавляет диапазон к загруженным, сливая с соседними
+	 */
+	private void add(long startByte, long endByte) {
+		Map.Entry<Long, Long> before = done.floorEntry(startByte);
+		if (before != null && before.getValue() >= startByte - 1) {
+			startByte = before.getKey();
+			endByte = Math.max(endByte, before.getValue());
+		}
+		Map.Entry<Long, Long> after;
+		while ((after = done.ceilingEntry(startByte)) != null && after.getKey() <= endByte + 1) {
+			endByte = Math.max(endByte, after.getValue());
+			done.remove(after.getKey());
+		}
+		done.put(startByte, endByte);
+	}
+
+	/**
+	 * Отмечает диапазон как записанный в файл
+	 */
+	synchronized void record(long startByte, long endByte) {
+		if (endByte < startByte)
+			return;
+		add(startByte, endByte);
+		long[] last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+		if (last != null && last[1] + 1 == startByte)
+			last[1] = endByte;									//Продолжение прошлой записи - одна запись в журнале
+		else
+			pending.add(new long[] {startByte, endByte});
+		pendingBytes += endByte - startByte + 1;
+		if (pendingBytes >= FLUSH_BYTES || System.currentTimeMillis() - lastFlush >= FLUSH_TIME)
+			flush();
+	}
+
+	/**
+	 * Сбрасывает на диск данные файла, затем накопленные записи журнала
+	 */
+	synchronized void flush() {
+		if (pending.isEmpty())
+			return;
+		try {
+			data.force(false);
+			for (long[] range: pending) {
+				out.writeLong(range[0]);
+				out.writeLong(range[1]);
+			}
+			out.flush();
+			outFile.getChannel().force(false);
+			pending.clear();
+			pendingBytes = 0;
+			lastFlush = System.currentTimeMillis();
+		} catch (IOException e) {
+			System.out.println("Error write " + file + " " + e);
+		}
+	}
+
+	/**
+	 * Закрывает журнал. Если файл загружен полностью, журнал удаляется.
+	 */
+	synchronized void close() {
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Error close " + file + " " + e);
+		}
+		if (isComplete())
+			file.delete();
+	}
+
+	/**
+	 * @return Недостающие диапазоны файла
+	 */
+	synchronized List<Segment> missing() {
+		List<Segment> list = new ArrayList<Segment>();
+		long pos = 0;
+		for (Map.Entry<Long, Long> range: done.entrySet()) {
+			if (range.getKey() > pos)
+				list.add(new Segment(pos, range.getKey() - 1));
+			pos = Math.max(pos, range.getValue() + 1);
+		}
+		if (pos < contentLength)
+			list.add(new Segment(pos, contentLength - 1));
+		return list;
+	}
+
+	/**
+	 * @return Кол-во загруженных байт
+	 */
+	synchronized long doneBytes() {
+		long bytes = 0;
+		for (Map.Entry<Long, Long> range: done.entrySet())
+			bytes += range.getValue() - range.getKey() + 1;
+		return bytes;
+	}
+
+	/**
+	 * @return true, если загружены все байты файла
+	 */
+	synchronized boolean isComplete() {
+		return doneBytes() >= contentLength;
+	}
+
+	/**
+	 * @return true, если загрузка продолжена по журналу
+	 */
+	boolean isResumed() {
+		return resumed;
+	}
+}
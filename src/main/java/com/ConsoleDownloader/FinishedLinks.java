@@ -0,0 +1,84 @@
+package com.ConsoleDownloader;
+
+/**
+ * Обработанные url задания. Для повтора url нужен только путь к сохраненному
+ * файлу, поэтому вместо DownloadFile хранится url, его 64-битный хэш и путь
+ * (null - url не загружен), в массивах с открытой адресацией, без объекта-обертки на url.
+ * Хэш только ускоряет поиск: url с одинаковым хэшем различаются сравнением строк.
+ */
+class FinishedLinks {
+	private static final int INITIAL = 16;				//Начальная емкость, степень двойки
+
+	private long[] hashes;								//Хэши url
+	private String[] links;								//url, null - свободная ячейка
+	private String[] paths;								//Пути к сохраненным файлам
+	private int size;									//Кол-во url
+
+	FinishedLinks() {
+		hashes = new long[INITIAL];
+		links = new String[INITIAL];
+		paths = new String[INITIAL];
+	}
+
+	/**
+	 * Запоминает обработанный url
+	 * @param hash хэш url (LinkReader.hash)
+	 * @param path путь к сохраненному файлу или null, если url не загружен
+	 */
+	void put(long hash, String link, String path) {
+		if (2 * (size + 1) > hashes.length)				//Заполнено не больше половины
+			resize();
+		int slot = find(hash, link);
+		if (links[slot] == null) {
+			links[slot] = link;
+			hashes[slot] = hash;
+			size++;
+		}
+		paths[slot] = path;
+	}
+
+	/**
+	 * @return true, если url уже обработан
+	 */
+	boolean contains(long hash, String link) {
+		return links[find(hash, link)] != null;
+	}
+
+	/**
+	 * @return Путь к сохраненному файлу или null, если url не загружен или неизвестен
+	 */
+	String get(long hash, String link) {
+		return paths[find(hash, link)];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return Ячейка с url или свободная ячейка, куда его положить
+	 */
+	private int find(long hash, String link) {
+		int mask = hashes.length - 1;
+		int slot = (int)(hash ^ (hash >>> 32)) & mask;
+		while (links[slot] != null && (hashes[slot] != hash || !links[slot].equals(link)))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void resize() {
+		long[] oldHashes = hashes;
+		String[] oldLinks = links;
+		String[] oldPaths = paths;
+		hashes = new long[oldHashes.length * 2];
+		links = new String[oldHashes.length * 2];
+		paths = new String[oldHashes.length * 2];
+		for (int i = 0; i < oldHashes.length; i++)
+			if (oldLinks[i] != null) {
+				int slot = find(oldHashes[i], oldLinks[i]);
+				hashes[slot] = oldHashes[i];
+				links[slot] = oldLinks[i];
+				paths[slot] = oldPaths[i];
+			}
+	}
+}
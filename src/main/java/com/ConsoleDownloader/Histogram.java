@@ -0,0 +1,85 @@
+package com.ConsoleDownloader;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Гистограмма в духе HdrHistogram: логарифмические интервалы,
+ * каждый поделен на 16 равных частей, поэтому погрешность
+ * перцентилей не больше 1/16. Запись без блокировок.
+ */
+class Histogram {
+	private static final int SUB_BITS = 4;							//16 частей в каждом интервале
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int SIZE = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	Histogram() {
+		counts = new AtomicLongArray(SIZE);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int)value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return SUB_COUNT + (exp - SUB_BITS) * SUB_COUNT + sub;
+	}
+
+	private static long lowerBound(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int exp = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+		int sub = (index - SUB_COUNT) % SUB_COUNT;
+		return (1L << exp) + ((long)sub << (exp - SUB_BITS));
+	}
+
+	/**
+	 * Записывает значение (отрицательные считаются нулем)
+	 */
+	void record(long value) {
+		value = Math.max(value, 0);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long curMax;
+		while (value > (curMax = max.get()) && !max.compareAndSet(curMax, value));
+	}
+
+	/**
+	 * @param percentile от 0 до 100
+	 * @return значение, не меньше которого percentile процентов записей (с погрешностью интервала)
+	 */
+	long percentile(double percentile) {
+		long total = count.sum();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < SIZE; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(lowerBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	double getMean() {
+		long total = count.sum();
+		return total == 0 ? 0 : (double)sum.sum() / total;
+	}
+}
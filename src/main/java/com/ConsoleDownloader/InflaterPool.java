@@ -0,0 +1,50 @@
+package com.ConsoleDownloader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Пул Inflater, общий для всех потоков.
+ * Inflater держит память вне кучи и дорого создается, поэтому после
+ * загрузки сжатого файла он сбрасывается и возвращается в пул.
+ * Лишние свободные Inflater сразу освобождаются.
+ */
+class InflaterPool {
+	private final int maxIdle;									//Сколько свободных Inflater держать
+	private final ConcurrentLinkedQueue<Inflater> zlib;			//Свободные Inflater для zlib (deflate)
+	private final ConcurrentLinkedQueue<Inflater> raw;			//Свободные Inflater без заголовка (gzip, "голый" deflate)
+	private final AtomicInteger idle;							//Кол-во свободных Inflater
+
+	InflaterPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+		zlib = new ConcurrentLinkedQueue<Inflater>();
+		raw = new ConcurrentLinkedQueue<Inflater>();
+		idle = new AtomicInteger(0);
+	}
+
+	/**
+	 * @param nowrap true - поток без заголовка zlib
+	 * @return Inflater из пула или новый, если свободных нет
+	 */
+	Inflater acquire(boolean nowrap) {
+		Inflater inf = (nowrap ? raw : zlib).poll();
+		if (inf == null)
+			return new Inflater(nowrap);
+		idle.decrementAndGet();
+		return inf;
+	}
+
+	/**
+	 * Возвращает Inflater в пул
+	 */
+	void release(Inflater inf, boolean nowrap) {
+		if (idle.incrementAndGet() > maxIdle) {
+			idle.decrementAndGet();
+			inf.end();
+			return;
+		}
+		inf.reset();
+		(nowrap ? raw : zlib).offer(inf);
+	}
+}
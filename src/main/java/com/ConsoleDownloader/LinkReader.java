@@ -0,0 +1,151 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Строка файла ссылок: url, имя для сохранения, необязательный SHA-256
+ * (третьим столбцом: hex или sha256:hex) и необязательные параметры вида key=value.
+ * Параметр mirror=url можно повторить для нескольких зеркал.
+ */
+class Link {
+	static final String WEIGHT = "weight";			//Вес файла при делении скорости
+	static final String SHA256 = "sha256";			//Ожидаемый SHA-256 файла
+	static final String MIRROR = "mirror";			//Зеркало того же файла
+
+	final String url;								//url
+	final String name;								//Имя для сохранения
+	final Map<String, String> options;				//Необязательные параметры
+
+	Link(String url, String name) {
+		this(url, name, Collections.<String, String>emptyMap());
+	}
+
+	Link(String url, String name, Map<String, String> options) {
+		this.url = url;
+		this.name = name;
+		this.options = options;
+	}
+
+	/**
+	 * @return Вес файла, по умолчанию 1
+	 */
+	int getWeight() {
+		String weight = options.get(WEIGHT);
+		return weight == null ? 1 : Integer.parseInt(weight);
+	}
+
+	/**
+	 * @return Ожидаемый SHA-256 файла в hex или null, если он не задан
+	 */
+	String getDigest() {
+		return options.get(SHA256);
+	}
+
+	/**
+	 * @return Зеркала файла, пустой список - нет
+	 */
+	List<String> getMirrors() {
+		String mirrors = options.get(MIRROR);
+		return mirrors == null ? Collections.<String>emptyList() : Arrays.asList(mirrors.split(" "));
+	}
+}
+
+/**
+ * Потоковое чтение файла ссылок: строки разбираются по одной,
+ * по мере того как менеджер забирает их, и весь файл в памяти не держится.
+ * Порядок строк сохраняется.
+ */
+class LinkReader implements Closeable {
+	private BufferedReader br;						//Файл ссылок
+	private long lineNumber;						//Номер текущей строки
+
+	LinkReader(String fileName) throws IOException {
+		br = new BufferedReader(new FileReader(fileName));
+		lineNumber = 0;
+	}
+
+	/**
+	 * Читает следующую ссылку, пропуская пустые и неверные строки
+	 * @return ссылка или null, если файл закончился
+	 */
+	Link next() throws IOException {
+		String line;
+		while ((line = br.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			String files[] = line.split("\\s+");
+			if (files.length < 2) {
+				System.out.println("Error line " + lineNumber + ": " + line);
+				continue;
+			}
+			Map<String, String> options = parseOptions(files);
+			if (options == null) {
+				System.out.println("Error line " + lineNumber + ": " + line);
+				continue;
+			}
+			return new Link(files[0], files[1], options);
+		}
+		return null;
+	}
+
+	/**
+	 * Разбирает параметры key=value после имени. Третий столбец без '=' - SHA-256 файла.
+	 * @return параметры или null, если они неверны
+	 */
+	private static Map<String, String> parseOptions(String[] files) {
+		if (files.length == 2)
+			return Collections.emptyMap();
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 2; i < files.length; i++) {
+			int eq = files[i].indexOf('=');
+			if (eq < 0 && i == 2) {
+				String digest = files[i];
+				if (digest.regionMatches(true, 0, Link.SHA256 + ":", 0, Link.SHA256.length() + 1))
+					digest = digest.substring(Link.SHA256.length() + 1);
+				options.put(Link.SHA256, digest);
+				continue;
+			}
+			if (eq <= 0)
+				return null;
+			String key = files[i].substring(0, eq);
+			String value = files[i].substring(eq + 1);
+			if (key.equals(Link.MIRROR) && options.containsKey(key))
+				value = options.get(key) + " " + value;			//Зеркала через пробел: в url пробелов нет
+			options.put(key, value);
+		}
+		String digest = options.get(Link.SHA256);
+		if (digest != null) {
+			if (!digest.matches("[0-9a-fA-F]{64}"))
+				return null;
+			options.put(Link.SHA256, digest.toLowerCase());
+		}
+		String weight = options.get(Link.WEIGHT);
+		if (weight != null)
+			try {
+				if (Integer.parseInt(weight) < 1)
+					return null;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		return options;
+	}
+
+	public void close() throws IOException {
+		br.close();
+	}
+
+	/**
+	 * 64-битный хэш url (FNV-1a) для индекса повторов; при совпадении хэшей url сравниваются целиком
+	 */
+	static long hash(String url) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++) {
+			hash ^= url.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
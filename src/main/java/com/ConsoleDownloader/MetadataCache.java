@@ -0,0 +1,102 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш сведений об url между запусками: размер, поддержка диапазонов, ETag и Last-Modified.
+ * Хранится текстом, одна строка на url, поля разделены табуляцией.
+ * По сохраненным ETag и Last-Modified повторный запуск спрашивает сервер
+ * условным запросом, изменился ли файл, и не загружает его заново.
+ */
+class MetadataCache {
+	private File file;										//Файл кэша, null - кэш не сохраняется
+	private Map<String, UrlInfo> entries;					//url -> сведения
+	private volatile boolean changed;						//Есть несохраненные изменения
+	int users;												//Задания, которые используют кэш (меняет DownloadService)
+
+	MetadataCache(String fileName) {
+		entries = new ConcurrentHashMap<String, UrlInfo>();
+		if (fileName == null)
+			return;
+		file = new File(fileName);
+		if (!file.exists())
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 5)
+					continue;										//Испорченная строка
+				try {
+					entries.put(fields[0], new UrlInfo(Long.parseLong(fields[1]), fields[2].equals("1"), empty(fields[3]), empty(fields[4])));
+				} catch (NumberFormatException e) {}
+			}
+		} catch (IOException e) {
+			System.out.println("Error read " + file + " " + e);
+		}
+	}
+
+	private static String empty(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+	/**
+	 * @return Сведения об url из кэша или null
+	 */
+	UrlInfo get(String link) {
+		return entries.get(link);
+	}
+
+	void put(String link, UrlInfo info) {
+		entries.put(link, info);
+		changed = true;
+	}
+
+	/**
+	 * Записывает кэш на диск через временный файл
+	 */
+	synchronized void save() {
+		if (file == null || !changed)
+			return;
+		changed = false;									//put() во время записи снова отметит изменения
+		File tmp = new File(file.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, UrlInfo> entry: entries.entrySet()) {
+				UrlInfo info = entry.getValue();
+				writer.write(entry.getKey() + "\t" + info.length + "\t" + (info.ranges ? "1" : "0") + "\t"
+						+ (info.etag == null ? "" : info.etag) + "\t" + (info.lastModified == null ? "" : info.lastModified) + "\n");
+			}
+		} catch (IOException e) {
+			System.out.println("Error write " + tmp + " " + e);
+			changed = true;
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Error write " + file + " " + e);
+			changed = true;
+		}
+	}
+}
+
+/**
+ * Сведения об url, полученные при проверке
+ */
+class UrlInfo {
+	final long length;										//Размер файла
+	final boolean ranges;									//Сервер отдает диапазоны
+	final String etag;										//ETag или null
+	final String lastModified;								//Last-Modified или null
+
+	UrlInfo(long length, boolean ranges, String etag, String lastModified) {
+		this.length = length;
+		this.ranges = ranges;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+}
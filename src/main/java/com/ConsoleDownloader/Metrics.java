@@ -0,0 +1,91 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Счетчики загрузки. Горячий путь только увеличивает LongAdder
+ * и пишет в гистограммы, без блокировок; сводку читает MetricsReporter.
+ */
+class Metrics {
+	final LongAdder bytes = new LongAdder();					//Всего загружено байт
+	final LongAdder throttledNanos = new LongAdder();			//Суммарное время ожидания лимита скорости
+	final LongAdder bufferWaitNanos = new LongAdder();			//Суммарное время ожидания свободного буфера
+	final LongAdder errors = new LongAdder();					//Ошибки соединений
+	final LongAdder retries = new LongAdder();					//Повторы после ошибок
+	final LongAdder mirrorsDropped = new LongAdder();			//Отключенные зеркала
+	final LongAdder filesDone = new LongAdder();				//Загруженные файлы
+	final LongAdder filesFailed = new LongAdder();				//Незагруженные файлы
+	final AtomicInteger connections = new AtomicInteger();		//Открытые соединения
+	final Histogram timeToFirstByte = new Histogram();			//Время до первого байта, мкс
+	final Histogram connectionSpeed = new Histogram();			//Скорость одного соединения, байт/сек
+	final long startNanos = System.nanoTime();
+	//Загружаемые файлы; один url может загружаться сразу в несколько файлов (задания службы, разные имена)
+	private final Set<FileMetrics> active = Collections.newSetFromMap(new ConcurrentHashMap<FileMetrics, Boolean>());
+
+	/**
+	 * Начинает учет загрузки файла
+	 * @param path путь сохранения
+	 */
+	FileMetrics startFile(String link, String path) {
+		FileMetrics file = new FileMetrics(link, path);
+		active.add(file);
+		return file;
+	}
+
+	/**
+	 * Заканчивает учет загрузки файла
+	 */
+	void finishFile(FileMetrics file, boolean success) {
+		active.remove(file);
+		if (success)
+			filesDone.increment();
+		else
+			filesFailed.increment();
+	}
+
+	/**
+	 * @return Файлы, загружаемые сейчас
+	 */
+	Collection<FileMetrics> activeFiles() {
+		return active;
+	}
+
+	/**
+	 * Учет одного соединения: время до первого байта и скорость
+	 * @param ttfbNanos время от запроса до первого байта, нс; <0 - байт не было
+	 * @param connBytes загружено байт по соединению
+	 * @param connNanos время соединения, нс
+	 */
+	void connectionFinished(long ttfbNanos, long connBytes, long connNanos) {
+		if (ttfbNanos >= 0)
+			timeToFirstByte.record(ttfbNanos / 1000);
+		if (connBytes > 0 && connNanos > 0)
+			connectionSpeed.record((long)(connBytes * 1e9 / connNanos));
+	}
+}
+
+/**
+ * Счетчики одного файла
+ */
+class FileMetrics {
+	final String link;
+	final String path;											//Путь сохранения
+	final LongAdder bytes = new LongAdder();					//Загружено байт
+	final AtomicInteger connections = new AtomicInteger();		//Открытые соединения
+	final long startNanos = System.nanoTime();
+
+	FileMetrics(String link, String path) {
+		this.link = link;
+		this.path = path;
+	}
+
+	/**
+	 * @return Средняя скорость с начала загрузки, байт/сек
+	 */
+	long speed() {
+		long nanos = System.nanoTime() - startNanos;
+		return nanos <= 0 ? 0 : (long)(bytes.sum() * 1e9 / nanos);
+	}
+}
@@ -0,0 +1,190 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Вывод счетчиков: строка прогресса в консоль каждые interval секунд,
+ * дамп в файл (JSON или, для имени *.prom, текстовый формат Prometheus)
+ * и http-страницы /metrics (Prometheus) и /metrics.json на локальном порту.
+ */
+class MetricsReporter implements Runnable {
+	private static final double MB = 1024*1024;
+
+	private Metrics metrics;
+	private int interval;								//Период вывода прогресса, сек, 0 - не выводить
+	private String dumpFile;							//Файл для дампа или null
+	private ScheduledExecutorService timer;
+	private HttpServer server;
+	private long lastBytes;								//Байт на момент прошлого вывода
+	private long lastNanos;								//Время прошлого вывода
+
+	MetricsReporter(Metrics metrics, int interval, String dumpFile, int port) {
+		this.metrics = metrics;
+		this.interval = interval;
+		this.dumpFile = dumpFile;
+		lastNanos = metrics.startNanos;
+		if (interval > 0 || dumpFile != null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thrd = new Thread(task, "metrics");
+					thrd.setDaemon(true);
+					return thrd;
+				}
+			});
+			int period = interval > 0 ? interval : 1;
+			timer.scheduleAtFixedRate(this, period, period, TimeUnit.SECONDS);
+		}
+		if (port > 0)
+			startServer(port);
+	}
+
+	private void startServer(int port) {
+		try {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+			server.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+					byte[] body = (json ? toJson() : toPrometheus()).getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; version=0.0.4");
+					exchange.sendResponseHeaders(200, body.length);
+					exchange.getResponseBody().write(body);
+					exchange.close();
+				}
+			});
+			server.start();
+			System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+		} catch (IOException e) {
+			System.out.println("Error metrics port " + port + " " + e);
+		}
+	}
+
+	/**
+	 * Периодический вывод
+	 */
+	public void run() {
+		if (interval > 0)
+			System.out.println(progressLine());
+		dump();
+	}
+
+	/**
+	 * Останавливает вывод, записав итоговый дамп
+	 */
+	void stop() {
+		if (timer != null)
+			timer.shutdownNow();
+		if (server != null)
+			server.stop(0);
+		dump();
+	}
+
+	String progressLine() {
+		long bytes = metrics.bytes.sum();
+		long now = System.nanoTime();
+		double speed = (bytes - lastBytes) / MB * 1e9 / Math.max(now - lastNanos, 1);
+		lastBytes = bytes;
+		lastNanos = now;
+		return String.format(Locale.ROOT, "Progress: %.1f MB, %.2f MB/s, files done=%d failed=%d active=%d, connections=%d, ttfb p50=%dms p99=%dms, throttled=%.1fs, errors=%d, retries=%d",
+			bytes / MB, speed, metrics.filesDone.sum(), metrics.filesFailed.sum(), metrics.activeFiles().size(),
+			metrics.connections.get(), metrics.timeToFirstByte.percentile(50) / 1000, metrics.timeToFirstByte.percentile(99) / 1000,
+			metrics.throttledNanos.sum() / 1e9, metrics.errors.sum(), metrics.retries.sum());
+	}
+
+	private void dump() {
+		if (dumpFile == null)
+			return;
+		String text = dumpFile.endsWith(".prom") ? toPrometheus() : toJson();
+		try {
+			Path path = Paths.get(dumpFile);
+			Path tmp = Paths.get(dumpFile + ".tmp");
+			Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Error write " + dumpFile + " " + e);
+		}
+	}
+
+	String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"bytes\":").append(metrics.bytes.sum())
+			.append(",\"uptime_seconds\":").append((System.nanoTime() - metrics.startNanos) / 1000000000L)
+			.append(",\"throttled_seconds\":").append(metrics.throttledNanos.sum() / 1e9)
+			.append(",\"buffer_wait_seconds\":").append(metrics.bufferWaitNanos.sum() / 1e9)
+			.append(",\"errors\":").append(metrics.errors.sum())
+			.append(",\"retries\":").append(metrics.retries.sum())
+			.append(",\"mirrors_dropped\":").append(metrics.mirrorsDropped.sum())
+			.append(",\"files_done\":").append(metrics.filesDone.sum())
+			.append(",\"files_failed\":").append(metrics.filesFailed.sum())
+			.append(",\"connections\":").append(metrics.connections.get())
+			.append(",\"ttfb_ms\":").append(histogramJson(metrics.timeToFirstByte, 1000))
+			.append(",\"connection_bytes_per_second\":").append(histogramJson(metrics.connectionSpeed, 1))
+			.append(",\"files\":[");
+		boolean first = true;
+		for (FileMetrics file: metrics.activeFiles()) {
+			if (!first)
+				json.append(',');
+			first = false;
+			json.append("{\"url\":\"").append(escape(file.link))
+				.append("\",\"path\":\"").append(escape(file.path))
+				.append("\",\"bytes\":").append(file.bytes.sum())
+				.append(",\"bytes_per_second\":").append(file.speed())
+				.append(",\"connections\":").append(file.connections.get()).append('}');
+		}
+		return json.append("]}\n").toString();
+	}
+
+	private static String histogramJson(Histogram histogram, long divider) {
+		return "{\"count\":" + histogram.getCount() + ",\"p50\":" + histogram.percentile(50) / divider
+			+ ",\"p90\":" + histogram.percentile(90) / divider + ",\"p99\":" + histogram.percentile(99) / divider
+			+ ",\"max\":" + histogram.getMax() / divider + "}";
+	}
+
+	String toPrometheus() {
+		StringBuilder prom = new StringBuilder();
+		counter(prom, "downloader_bytes_total", metrics.bytes.sum());
+		counter(prom, "downloader_throttled_seconds_total", metrics.throttledNanos.sum() / 1e9);
+		counter(prom, "downloader_buffer_wait_seconds_total", metrics.bufferWaitNanos.sum() / 1e9);
+		counter(prom, "downloader_errors_total", metrics.errors.sum());
+		counter(prom, "downloader_retries_total", metrics.retries.sum());
+		counter(prom, "downloader_mirrors_dropped_total", metrics.mirrorsDropped.sum());
+		counter(prom, "downloader_files_done_total", metrics.filesDone.sum());
+		counter(prom, "downloader_files_failed_total", metrics.filesFailed.sum());
+		prom.append("# TYPE downloader_connections gauge\ndownloader_connections ").append(metrics.connections.get()).append('\n');
+		summary(prom, "downloader_ttfb_seconds", metrics.timeToFirstByte, 1e6);
+		summary(prom, "downloader_connection_bytes_per_second", metrics.connectionSpeed, 1);
+		prom.append("# TYPE downloader_file_bytes gauge\n");
+		for (FileMetrics file: metrics.activeFiles())
+			prom.append("downloader_file_bytes{url=\"").append(escape(file.link)).append("\",path=\"").append(escape(file.path)).append("\"} ").append(file.bytes.sum()).append('\n');
+		prom.append("# TYPE downloader_file_bytes_per_second gauge\n");
+		for (FileMetrics file: metrics.activeFiles())
+			prom.append("downloader_file_bytes_per_second{url=\"").append(escape(file.link)).append("\",path=\"").append(escape(file.path)).append("\"} ").append(file.speed()).append('\n');
+		return prom.toString();
+	}
+
+	private static void counter(StringBuilder prom, String name, long value) {
+		prom.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder prom, String name, double value) {
+		prom.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder prom, String name, Histogram histogram, double divider) {
+		prom.append("# TYPE ").append(name).append(" summary\n");
+		for (double q: new double[] {0.5, 0.9, 0.99})
+			prom.append(name).append("{quantile=\"").append(q).append("\"} ").append(histogram.percentile(q * 100) / divider).append('\n');
+		prom.append(name).append("_count ").append(histogram.getCount()).append('\n');
+		prom.append(name).append("_sum ").append(histogram.getMean() * histogram.getCount() / divider).append('\n');
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
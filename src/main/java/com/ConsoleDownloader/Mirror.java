@@ -0,0 +1,130 @@
+package com.ConsoleDownloader;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Один из url, с которых загружается файл: основной url из файла ссылок
+ * или зеркало (mirror=url). Хранит валидаторы этого сервера, кол-во соединений
+ * и измеренную скорость одного соединения, по которой новые диапазоны
+ * раздаются между зеркалами.
+ */
+class Mirror {
+	private static final int MAX_FAILURES = 3;			//Сколько временных ошибок подряд терпеть до отказа от зеркала
+	private static final double SMOOTHING = 0.25;		//Вес нового измерения в средней скорости
+
+	final String link;									//url в виде строки
+	final URL url;
+	final AtomicInteger connections;					//Открытые соединения с зеркалом
+	private BandwidthAllocator.RateNode shaper;			//Узел файла под хостом зеркала в распределении скорости
+	private volatile boolean checked;					//Первый ответ зеркала проверен
+	private volatile String etag;						//ETag зеркала
+	private volatile String lastModified;				//Last-Modified зеркала
+	private volatile boolean dropped;					//Зеркало отключено, его диапазоны загружают другие
+	private int failures;								//Временные ошибки подряд
+	private double rate;								//Средняя скорость одного соединения, байт/сек, 0 - не измерена
+
+	Mirror(String link, URL url) {
+		this.link = link;
+		this.url = url;
+		connections = new AtomicInteger(0);
+	}
+
+	/**
+	 * Запоминает валидаторы, полученные при проверке url
+	 */
+	void setValidators(String etag, String lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		checked = true;
+	}
+
+	/**
+	 * @return true, если валидаторы зеркала уже известны
+	 */
+	boolean isChecked() {
+		return checked;
+	}
+
+	/**
+	 * @return ETag зеркала или null
+	 */
+	String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return true, если ETag и Last-Modified ответа совпадают с известными для зеркала
+	 */
+	boolean isSameVersion(HttpURLConnection conn) {
+		if (etag == null && lastModified == null)
+			return false;
+		return Objects.equals(etag, conn.getHeaderField("ETag")) && Objects.equals(lastModified, conn.getHeaderField("Last-Modified"));
+	}
+
+	/**
+	 * @return Значение для If-Range: сильный ETag или Last-Modified, null если нет
+	 */
+	String getValidator() {
+		if (etag != null && !etag.startsWith("W/"))
+			return etag;
+		return lastModified;
+	}
+
+	/**
+	 * @return true, если ETag сильный (годится для сравнения содержимого)
+	 */
+	static boolean isStrong(String etag) {
+		return etag != null && !etag.startsWith("W/");
+	}
+
+	BandwidthAllocator.RateNode getShaper() {
+		return shaper;
+	}
+
+	void setShaper(BandwidthAllocator.RateNode shaper) {
+		this.shaper = shaper;
+	}
+
+	/**
+	 * Добавляет измерение скорости соединения
+	 * @param bytes загружено байт
+	 * @param nanos за сколько наносекунд
+	 */
+	synchronized void measured(long bytes, long nanos) {
+		double sample = bytes * 1e9 / nanos;
+		rate = rate == 0 ? sample : rate + SMOOTHING * (sample - rate);
+	}
+
+	/**
+	 * @return Средняя скорость одного соединения, байт/сек, 0 - еще не измерена
+	 */
+	synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Отмечает временную ошибку
+	 * @return true, если ошибок подряд слишком много и зеркало пора отключить
+	 */
+	synchronized boolean failed() {
+		return ++failures >= MAX_FAILURES;
+	}
+
+	/**
+	 * Сбрасывает счетчик ошибок после удачного ответа
+	 */
+	synchronized void succeeded() {
+		failures = 0;
+	}
+
+	boolean isDropped() {
+		return dropped;
+	}
+
+	void drop() {
+		dropped = true;
+	}
+}
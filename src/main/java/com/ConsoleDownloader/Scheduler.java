@@ -0,0 +1,63 @@
+package com.ConsoleDownloader;
+
+import java.util.*;
+
+/**
+ * Порядок запуска проверенных файлов (--schedule).
+ * Когда у движка освобождается поток, он берет не первый проверенный файл,
+ * а лучший по выбранной политике из всех ждущих загрузки:
+ * fifo - в порядке проверки, largest - сначала большие (вся загрузка закончится раньше),
+ * smallest - сначала маленькие (быстрее готово больше файлов),
+ * fair - файл хоста, у которого сейчас меньше всего загружаемых файлов.
+ * При равенстве берется файл, проверенный раньше.
+ */
+class Scheduler {
+	static final String FIFO = "fifo";
+	static final String LARGEST = "largest";
+	static final String SMALLEST = "smallest";
+	static final String FAIR = "fair";
+
+	private String policy;								//Политика выбора
+	private ConcurrencyController controller;			//Для подсчета загружаемых файлов хоста
+	private List<DownloadFile> ready;					//Проверенные файлы в порядке проверки
+
+	Scheduler(String policy, ConcurrencyController controller) {
+		this.policy = policy;
+		this.controller = controller;
+		ready = new ArrayList<DownloadFile>();
+	}
+
+	/**
+	 * Добавляет проверенный файл в ожидающие
+	 */
+	synchronized void add(DownloadFile file) {
+		ready.add(file);
+	}
+
+	/**
+	 * @return Лучший из ожидающих файлов или null, если ждущих нет
+	 */
+	synchronized DownloadFile next() {
+		if (ready.isEmpty())
+			return null;
+		int best = 0;
+		for (int i = 1; i < ready.size(); i++)
+			if (better(ready.get(i), ready.get(best)))
+				best = i;
+		return ready.remove(best);
+	}
+
+	private boolean better(DownloadFile a, DownloadFile b) {
+		if (LARGEST.equals(policy))
+			return a.getContentLength() > b.getContentLength();
+		if (SMALLEST.equals(policy))
+			return a.getContentLength() < b.getContentLength();
+		if (FAIR.equals(policy))
+			return activeFiles(a) < activeFiles(b);
+		return false;
+	}
+
+	private int activeFiles(DownloadFile file) {
+		return controller.host(file.getHostName()).activeFiles();
+	}
+}
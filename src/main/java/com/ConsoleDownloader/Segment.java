@@ -0,0 +1,57 @@
+package com.ConsoleDownloader;
+
+/**
+ * Диапазон байт файла, загружаемый одним потоком.
+ * Позицию двигает только загружающий поток, а конец диапазона
+ * может уменьшить другой поток, забрав себе вторую половину.
+ */
+class Segment {
+	private long pos;									//Номер следующего байта для записи
+	private long end;									//Номер последнего байта диапазона
+
+	Segment(long startByte, long endByte) {
+		pos = startByte;
+		end = endByte;
+	}
+
+	synchronized long getPos() {
+		return pos;
+	}
+
+	synchronized long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return Кол-во еще не загруженных байт
+	 */
+	synchronized long remaining() {
+		return end - pos + 1;
+	}
+
+	/**
+	 * Резервирует за загружающим потоком следующие байты диапазона
+	 * @param count кол-во прочитанных байт
+	 * @return кол-во байт, которые можно записать (диапазон мог сократиться)
+	 */
+	synchronized int reserve(int count) {
+		int allowed = (int)Math.max(Math.min(count, end - pos + 1), 0);
+		pos += allowed;
+		return allowed;
+	}
+
+	/**
+	 * Отделяет вторую половину оставшегося диапазона
+	 * @param minChunk мин. размер каждой из половин
+	 * @return новый диапазон или null, если делить уже нечего
+	 */
+	synchronized Segment split(long minChunk) {
+		long left = end - pos + 1;
+		if (left < 2 * minChunk)
+			return null;
+		long middle = pos + left / 2;
+		Segment tail = new Segment(middle, end);
+		end = middle - 1;
+		return tail;
+	}
+}
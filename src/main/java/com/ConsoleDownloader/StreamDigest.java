@@ -0,0 +1,168 @@
+package com.ConsoleDownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * SHA-256 файла, считаемый во время загрузки.
+ * Байты, записанные сразу за уже посчитанным началом файла, хэшируются прямо из
+ * буфера сети. Части, записанные другими потоками дальше, запоминаются и дочитываются
+ * из файла (обычно еще из кэша ОС), как только начало до них дойдет.
+ * Дочитывает один поток вне блокировки, поэтому остальные потоки не ждут хэширования;
+ * писатели отдают дочитывание отдельному потоку через update() и catchUp().
+ * Так файл проверяется без отдельного прохода по диску после загрузки.
+ */
+class StreamDigest {
+	private static final int READ_BUFFER = 1024*1024;	//Буфер дочитывания из файла
+
+	private MessageDigest sha;
+	private FileChannel channel;						//Канал загружаемого файла
+	private long length;								//Размер файла
+	private long hashed;								//Посчитано байт от начала файла
+	private TreeMap<Long, Long> pending;				//Записанные, но еще не посчитанные диапазоны: начало -> конец (не включая)
+	private boolean catchingUp;							//Какой-то поток дочитывает диапазоны из файла
+	private ByteBuffer readBuffer;
+
+	StreamDigest(FileChannel channel, long length) throws IOException {
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		this.channel = channel;
+		this.length = length;
+		pending = new TreeMap<Long, Long>();
+	}
+
+	/**
+	 * Отмечает байты, записанные в файл
+	 * @param data записанные байты (от position до limit), буфер не меняется
+	 * @param pos позиция в файле
+	 */
+	void written(ByteBuffer data, long pos) throws IOException {
+		if (update(data, pos))
+			catchUp();
+	}
+
+	/**
+	 * Отмечает байты, записанные в файл, не читая из файла
+	 * @param data записанные байты (от position до limit), буфер не меняется
+	 * @param pos позиция в файле
+	 * @return true, если вызвавший должен дочитать файл через catchUp()
+	 */
+	synchronized boolean update(ByteBuffer data, long pos) {
+		int count = data.remaining();
+		if (count == 0)
+			return false;
+		if (pos != hashed || catchingUp) {
+			add(pos, pos + count);
+			return false;
+		}
+		sha.update(data.duplicate());
+		hashed += count;
+		return claim();
+	}
+
+	/**
+	 * Досчитывает все, что осталось, читая из файла. Вызывается, когда запись закончена.
+	 * @return SHA-256 файла в hex
+	 */
+	synchronized String finish() throws IOException {
+		boolean interrupted = false;
+		while (catchingUp)										//sha еще у дочитывающего потока
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		pending.clear();
+		read(hashed, length);
+		hashed = length;
+		return FileAliases.toHex(sha.digest());
+	}
+
+	/**
+	 * Забирает на дочитывание диапазон, начинающийся сразу за посчитанным
+	 * @return true, если такой диапазон есть
+	 */
+	private boolean claim() {
+		Map.Entry<Long, Long> next = pending.firstEntry();
+		if (next == null || next.getKey() > hashed)
+			return false;
+		catchingUp = true;
+		return true;
+	}
+
+	/**
+	 * Дочитывает из файла диапазоны, примыкающие к посчитанному началу.
+	 * Вызывается только после update(), вернувшего true. При ошибке
+	 * недочитанное досчитает finish().
+	 */
+	void catchUp() throws IOException {
+		try {
+			while (true) {
+				long start, end;
+				synchronized (this) {
+					Map.Entry<Long, Long> next = pending.firstEntry();
+					if (next == null || next.getKey() > hashed) {
+						catchingUp = false;
+						notifyAll();
+						return;
+					}
+					pending.remove(next.getKey());
+					start = hashed;
+					end = next.getValue();
+				}
+				read(start, end);								//Пока catchingUp, sha трогает только этот поток
+				synchronized (this) {
+					hashed = Math.max(hashed, end);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				catchingUp = false;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private void read(long start, long end) throws IOException {
+		if (readBuffer == null)
+			readBuffer = ByteBuffer.allocate(READ_BUFFER);
+		long pos = start;
+		while (pos < end) {
+			readBuffer.clear();
+			readBuffer.limit((int)Math.min(readBuffer.capacity(), end - pos));
+			int numRead = channel.read(readBuffer, pos);
+			if (numRead == -1)
+				throw new IOException("unexpected end of file at byte " + pos);
+			readBuffer.flip();
+			sha.update(readBuffer);
+			pos += numRead;
+		}
+	}
+
+	/**
+	 * Добавляет диапазон к ожидающим, сливая с соседними
+	 */
+	private void add(long start, long end) {
+		Map.Entry<Long, Long> before = pending.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> after;
+		while ((after = pending.ceilingEntry(start)) != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			pending.remove(after.getKey());
+		}
+		pending.put(start, end);
+	}
+}
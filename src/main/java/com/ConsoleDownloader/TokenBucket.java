@@ -0,0 +1,126 @@
+package com.ConsoleDownloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общее для всех потоков ограничение скорости загрузки (token bucket).
+ * Токены (байты) пополняются пропорционально прошедшему времени, без блокировок:
+ * поток атомарно забирает нужное кол-во токенов и, если ушел в долг,
+ * спит ровно столько, сколько нужно на погашение долга.
+ * Завершившиеся потоки просто перестают забирать токены,
+ * и их доля сразу достается оставшимся.
+ */
+class TokenBucket {
+	private static final long NANOS = 1000000000L;		//Наносекунд в секунде
+	private static final long BURST_PARTS = 10;			//Емкость ведра - 1/10 секунды при текущей скорости
+	private static final long MAX_SLEEP = 100000000L;	//Макс. сон за раз, нс: новая скорость подхватывается быстро
+
+	private volatile long rate;							//Скорость в байтах/сек, 0 - без ограничения
+	private final AtomicLong tokens;					//Доступные токены, отрицательное значение - долг
+	private final AtomicLong lastRefill;				//Время последнего пополнения, нс
+
+	TokenBucket(long rate) {
+		this.rate = rate;
+		tokens = new AtomicLong(capacity(rate));
+		lastRefill = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Меняет скорость на лету, действует на все потоки сразу
+	 * @param rate скорость в байтах/сек, 0 - без ограничения
+	 */
+	void setRate(long rate) {
+		refill(this.rate);
+		this.rate = rate;
+	}
+
+	/**
+	 * @return Скорость в байтах/сек
+	 */
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Забирает count байт из ведра, при необходимости засыпая
+	 * @param count кол-во байт
+	 * @return время ожидания в нс
+	 */
+	long acquire(long count) {
+		return await(take(count));
+	}
+
+	/**
+	 * Забирает count байт из ведра, не засыпая
+	 * @param count кол-во байт
+	 * @return долг в байтах, который надо переждать через await(), 0 - ждать не нужно
+	 */
+	long take(long count) {
+		long curRate = rate;
+		if (curRate <= 0)
+			return 0;
+		refill(curRate);
+		long left = tokens.addAndGet(-count);
+		return left >= 0 ? 0 : -left;							//Ждем и долг потоков, забравших токены раньше
+	}
+
+	/**
+	 * Спит, пока долг не погасится. Спит частями по MAX_SLEEP, и если скорость
+	 * за это время изменилась, остаток долга гасится уже с новой скоростью.
+	 * @param debt долг в байтах
+	 * @return время ожидания в нс
+	 */
+	long await(long debt) {
+		long slept = 0;
+		double left = debt;
+		while (left > 0) {
+			long curRate = rate;
+			if (curRate <= 0)
+				break;
+			long waitNanos = (long)Math.min(left * NANOS / curRate, MAX_SLEEP);
+			if (waitNanos <= 0)
+				break;
+			try {
+				Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			slept += waitNanos;
+			left -= (double)waitNanos * curRate / NANOS;
+		}
+		return slept;
+	}
+
+	/**
+	 * Добавляет токены за время, прошедшее с последнего пополнения.
+	 * Время сдвигается только на целое кол-во выданных токенов,
+	 * поэтому дробные байты не теряются и при малых скоростях.
+	 */
+	private void refill(long curRate) {
+		if (curRate <= 0)
+			return;
+		long now = System.nanoTime();
+		long last = lastRefill.get();
+		long add = (long)((double)(now - last) * curRate / NANOS);
+		if (add <= 0)
+			return;
+		long cap = capacity(curRate);
+		if (add > cap) {										//Ведро давно полное
+			if (!lastRefill.compareAndSet(last, now))
+				return;
+		} else if (!lastRefill.compareAndSet(last, last + (long)((double)add * NANOS / curRate)))
+			return;												//Пополнил другой поток
+		long cur, next;
+		do {
+			cur = tokens.get();
+			next = Math.min(cur + add, cap);
+			if (next <= cur)
+				return;
+		} while (!tokens.compareAndSet(cur, next));
+	}
+
+	private static long capacity(long rate) {
+		return Math.max(rate / BURST_PARTS, 1);
+	}
+}
@@ -0,0 +1,251 @@
+package com.ConsoleDownloader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Локальный http-сервер для тестов и бенчмарков.
+ * Отдает файлы из памяти, поддерживает Range, задержку перед ответом
+ * и ограничение скорости каждого соединения.
+ * Сбои задаются числом ответов, которые их получат, поэтому тесты повторяемы:
+ * обрыв соединения посреди ответа, Content-Length меньше запрошенного диапазона
+ * и slow-loris (заголовки сразу, тело по байту с большими паузами).
+ * Сбои достаются только ответам с данными, а не однобайтовым проверкам url.
+ */
+public class LocalOrigin {
+	private HttpServer server;
+	private Map<String, byte[]> files;				//Путь -> содержимое
+	private volatile long latency;					//Задержка перед ответом, мс
+	private volatile long bandwidth;				//Скорость одного соединения, байт/сек, 0 - без ограничения
+	private volatile boolean ranges;				//Поддержка Range
+	private volatile String etag;					//ETag всех файлов, null - по размеру файла
+	private AtomicInteger resets;					//Сколько ответов оборвать
+	private volatile int resetAfter;				//После скольких байт тела обрывать
+	private AtomicInteger wrongLengths;				//Сколько ответов укоротить вдвое вместе с Content-Length
+	private AtomicInteger slowLoris;				//Сколько ответов отдавать по байту
+	private volatile long slowInterval;				//Пауза между байтами slow-loris, мс
+	private AtomicInteger requests;					//Всего запросов
+	private AtomicLong bytesSent;					//Всего отдано байт тела
+
+	public LocalOrigin() throws IOException {
+		files = new ConcurrentHashMap<String, byte[]>();
+		ranges = true;
+		resets = new AtomicInteger();
+		wrongLengths = new AtomicInteger();
+		slowLoris = new AtomicInteger();
+		requests = new AtomicInteger();
+		bytesSent = new AtomicLong();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Добавляет файл со случайным содержимым
+	 * @return url файла
+	 */
+	public String addFile(String path, int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return addFile(path, data);
+	}
+
+	/**
+	 * Добавляет файл с заданным содержимым
+	 * @return url файла
+	 */
+	public String addFile(String path, byte[] data) {
+		files.put(path, data);
+		return url(path);
+	}
+
+	public String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	public byte[] getFile(String path) {
+		return files.get(path);
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	public void setRanges(boolean ranges) {
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Задает ETag всех файлов вместо ETag по размеру
+	 */
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	/**
+	 * Обрывает соединение у следующих count ответов после afterBytes байт тела
+	 */
+	public void setResets(int count, int afterBytes) {
+		resetAfter = afterBytes;
+		resets.set(count);
+	}
+
+	/**
+	 * Следующие count ответов объявляют и отдают только половину диапазона
+	 */
+	public void setWrongLengths(int count) {
+		wrongLengths.set(count);
+	}
+
+	/**
+	 * Следующие count ответов отдают тело по байту с паузой interval мс
+	 */
+	public void setSlowLoris(int count, long interval) {
+		slowInterval = interval;
+		slowLoris.set(count);
+	}
+
+	/**
+	 * @return Кол-во запросов с запуска
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Кол-во отданных байт тела с запуска
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public void stop() {
+		server.stop(0);
+		((ExecutorService)server.getExecutor()).shutdownNow();
+	}
+
+	protected void serve(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		sleep(latency);
+		byte[] data = files.get(exchange.getRequestURI().getPath());
+		if (data == null) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		long start = 0;
+		long end = data.length - 1;
+		int code = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (ranges && range != null && range.startsWith("bytes=")) {
+			String[] bounds = range.substring(6).split("-", -1);
+			start = Long.parseLong(bounds[0]);
+			if (!bounds[1].isEmpty())
+				end = Math.min(Long.parseLong(bounds[1]), data.length - 1);
+			code = 206;
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+		}
+		String tag = etag != null ? etag : "\"" + data.length + "\"";
+		exchange.getResponseHeaders().set("ETag", tag);
+		exchange.getResponseHeaders().set("Accept-Ranges", ranges ? "bytes" : "none");
+		if (tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {	//Файл не изменился
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Content-Length", Long.toString(end - start + 1));
+			exchange.sendResponseHeaders(code, -1);
+			exchange.close();
+			return;
+		}
+		int length = (int)(end - start + 1);
+		if (length > 1 && take(wrongLengths))
+			length /= 2;											//Ответ короче диапазона, но с верной для себя длиной
+		exchange.sendResponseHeaders(code, length);
+		if (length > 1 && take(resets)) {
+			write(exchange.getResponseBody(), data, (int)start, Math.min(resetAfter, length));
+			try {
+				exchange.getResponseBody().flush();
+			} catch (IOException e) {}
+			exchange.close();										//Тело не дописано - сервер закрывает соединение
+			return;
+		}
+		if (length > 1 && take(slowLoris))
+			trickle(exchange.getResponseBody(), data, (int)start, length);
+		else
+			write(exchange.getResponseBody(), data, (int)start, length);
+		exchange.close();
+	}
+
+	/**
+	 * Уменьшает счетчик сбоя
+	 * @return true, если этот ответ получает сбой
+	 */
+	private static boolean take(AtomicInteger counter) {
+		int left;
+		do {
+			left = counter.get();
+			if (left <= 0)
+				return false;
+		} while (!counter.compareAndSet(left, left - 1));
+		return true;
+	}
+
+	/**
+	 * Slow-loris: тело по одному байту с паузой
+	 */
+	private void trickle(OutputStream out, byte[] data, int offset, int length) {
+		try {
+			for (int sent = 0; sent < length; sent++) {
+				out.write(data[offset + sent]);
+				out.flush();
+				bytesSent.incrementAndGet();
+				sleep(slowInterval);
+				if (Thread.currentThread().isInterrupted())
+					return;
+			}
+		} catch (IOException e) {}								//Клиент закрыл соединение
+	}
+
+	/**
+	 * Пишет данные блоками, выдерживая скорость соединения
+	 */
+	protected void write(OutputStream out, byte[] data, int offset, int length) {
+		long timeStart = System.nanoTime();
+		int block = 16*1024;
+		try {
+			for (int sent = 0; sent < length; sent += block) {
+				out.write(data, offset + sent, Math.min(block, length - sent));
+				bytesSent.addAndGet(Math.min(block, length - sent));
+				long rate = bandwidth;
+				if (rate > 0)
+					sleep((sent + block) * 1000L / rate - (System.nanoTime() - timeStart) / 1000000);
+			}
+		} catch (IOException e) {}								//Клиент закрыл соединение
+	}
+
+	static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -65,6 +65,83 @@ public class TestAnalyzeParameters {
 		assertTrue(recvLinks.equals(testLinks));									//Проверка на правильность ссылок и имен, прочитанных из файла
 	}
 	
+	/**
+	 * Тест для проверки необязательных параметров
+	 */
+	@Test
+	public void testOptionalParameters() {
+		String parameters = "-n 5 -l 2000k -o test -f links.txt --min-chunk 16k";
+		AnalyzeParameters analyzeParameters = null;
+		try {
+			analyzeParameters = new AnalyzeParameters(parameters.split(" "));
+		} catch (BadParamException e) {
+			e.printStackTrace();
+			fail("Not yet implemented");
+		}
+		assertEquals(analyzeParameters.getSettings().getMinChunk(), 16*1024);		//Проверка на мин. размер части
+	}
+	
+	/**
+	 * Тест для проверки 64-битных скоростей и суффикса 'g'
+	 */
+	@Test
+	public void testLargeSpeed() {
+		String parameters = "-n 5 -l 10g -o test -f links.txt --host-speed 3000m";
+		AnalyzeParameters analyzeParameters = null;
+		try {
+			analyzeParameters = new AnalyzeParameters(parameters.split(" "));
+		} catch (BadParamException e) {
+			e.printStackTrace();
+			fail("Not yet implemented");
+		}
+		assertEquals(analyzeParameters.getSpeed(), 10L*1024*1024*1024);
+		assertEquals(analyzeParameters.getSettings().getHostSpeed(), 3000L*1024*1024);
+	}
+
+	/**
+	 * Тест для проверки переполнения скорости
+	 */
+	@Test
+	public void testSpeedOverflow() {
+		String parameters = "-n 5 -l 9000000000000g -o test -f links.txt";
+		try {
+			new AnalyzeParameters(parameters.split(" "));
+		} catch (BadParamException e) {
+			return;
+		}
+		fail("Not yet implemented");
+	}
+
+	/**
+	 * Тест для проверки слишком большого буфера: 4g в int дает 0, 2g - отрицательное число
+	 */
+	@Test
+	public void testBufferSizeOverflow() {
+		for (String size: new String[] {"4g", "2g", "128m"}) {
+			String parameters = "-n 5 -l 2000k -o test -f links.txt --buffer-memory 64m --buffer-size " + size;
+			try {
+				new AnalyzeParameters(parameters.split(" "));
+				fail("accepted --buffer-size " + size);
+			} catch (BadParamException e) {
+				assertEquals("--buffer-size", e.param);
+			}
+		}
+	}
+
+	/**
+	 * Тест для проверки пропущенного обязательного параметра
+	 */
+	@Test
+	public void testMissingParameter() {
+		String parameters = "-n 5 -l 2000k -o test --min-chunk 16k";
+		try {
+			new AnalyzeParameters(parameters.split(" "));
+		} catch (BadParamException e) {
+			return;
+		}
+		fail("Not yet implemented");
+	}
+	
 	/**
 	 * Тест для проверки ввода колва потоков 
 	 */
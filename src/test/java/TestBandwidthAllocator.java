@@ -0,0 +1,92 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class TestBandwidthAllocator {
+
+	private BandwidthAllocator.RateNode node(int weight, long demand) {
+		BandwidthAllocator.RateNode node = new BandwidthAllocator.RateNode(null, 0, weight);
+		node.setDemand(demand);
+		return node;
+	}
+
+	/**
+	 * Тест для проверки деления пропорционально весам
+	 */
+	@Test
+	public void testWeights() {
+		BandwidthAllocator.RateNode a = node(3, Long.MAX_VALUE);
+		BandwidthAllocator.RateNode b = node(1, Long.MAX_VALUE);
+		BandwidthAllocator.fill(4000000, Arrays.asList(a, b));
+		assertEquals(a.getAllocated(), 3000000);
+		assertEquals(b.getAllocated(), 1000000);
+	}
+
+	/**
+	 * Тест для проверки передачи неиспользуемой доли занятым узлам
+	 */
+	@Test
+	public void testLeftover() {
+		BandwidthAllocator.RateNode slow = node(1, 500000);
+		BandwidthAllocator.RateNode a = node(1, Long.MAX_VALUE);
+		BandwidthAllocator.RateNode b = node(2, Long.MAX_VALUE);
+		BandwidthAllocator.fill(3500000, Arrays.asList(slow, a, b));
+		assertEquals(slow.getAllocated(), 500000);						//Медленному - сколько он качает
+		assertEquals(a.getAllocated(), 1000000);						//Остальное - по весам
+		assertEquals(b.getAllocated(), 2000000);
+	}
+
+	/**
+	 * Тест для проверки, что всем хватает
+	 */
+	@Test
+	public void testEnough() {
+		BandwidthAllocator.RateNode a = node(1, 100000);
+		BandwidthAllocator.RateNode b = node(5, 200000);
+		BandwidthAllocator.fill(4000000, Arrays.asList(a, b));
+		assertEquals(a.getAllocated(), 100000);
+		assertEquals(b.getAllocated(), 200000);
+	}
+
+	/**
+	 * Тест для проверки соблюдения лимита хоста при свободном общем лимите
+	 */
+	@Test
+	public void testHostCap() throws InterruptedException {
+		BandwidthAllocator bandwidth = new BandwidthAllocator(0, 1000000);
+		BandwidthAllocator.RateNode file = bandwidth.file("host", 1);
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++)
+			file.acquire(25000);
+		long elapsed = System.nanoTime() - start;
+		bandwidth.stop();
+		assertTrue(elapsed >= 350000000L);								//500000 байт при 1000000 байт/сек за вычетом ведра
+	}
+
+	/**
+	 * Тест для проверки снятия общего лимита на лету: хост без своего лимита
+	 * больше не тормозится долей от прежнего общего лимита
+	 */
+	@Test
+	public void testClearGlobalRate() {
+		BandwidthAllocator bandwidth = new BandwidthAllocator(1000000, 0);
+		BandwidthAllocator.RateNode file = bandwidth.file("host", 1);
+		bandwidth.allocate();
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++)
+			file.acquire(25000);
+		assertTrue(System.nanoTime() - start >= 350000000L);			//Общий лимит действует
+		bandwidth.setGlobalRate(0);
+		bandwidth.allocate();
+		start = System.nanoTime();
+		for (int i = 0; i < 80; i++)
+			file.acquire(25000);
+		long elapsed = System.nanoTime() - start;
+		bandwidth.stop();
+		assertTrue("elapsed " + elapsed, elapsed < 300000000L);			//2000000 байт при прежнем лимите - 2 сек
+	}
+}
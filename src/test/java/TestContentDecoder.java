@@ -0,0 +1,109 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.*;
+
+import org.junit.*;
+
+public class TestContentDecoder {
+	private byte[] data;
+	private InflaterPool pool;
+
+	@Before
+	public void setUp() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			text.append(i).append(" GET /api/items 200\n");
+		data = text.toString().getBytes();
+		pool = new InflaterPool(2);
+	}
+
+	private byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(bytes);
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] deflate(byte[] bytes, boolean nowrap) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (DeflaterOutputStream zlib = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+			zlib.write(bytes);
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] decode(byte[] body, String encoding) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ContentDecoder decoder = ContentDecoder.open(new ByteArrayInputStream(body), encoding, pool, 4096)) {
+			byte[] buf = new byte[1000];
+			long wire = 0;
+			int numRead;
+			while ((numRead = decoder.read(buf, 0, buf.length)) != -1) {
+				out.write(buf, 0, numRead);
+				wire += decoder.takeWireBytes();
+			}
+			wire += decoder.takeWireBytes();
+			assertEquals(wire, body.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Тест для проверки распаковки gzip и подсчета сжатых байт
+	 */
+	@Test
+	public void testGzip() throws IOException {
+		assertArrayEquals(decode(gzip(data), "gzip"), data);
+		assertArrayEquals(decode(gzip(data), "x-gzip"), data);
+	}
+
+	/**
+	 * Тест для проверки распаковки deflate с заголовком zlib и без него
+	 */
+	@Test
+	public void testDeflate() throws IOException {
+		assertArrayEquals(decode(deflate(data, false), "deflate"), data);
+		assertArrayEquals(decode(deflate(data, true), "deflate"), data);
+	}
+
+	/**
+	 * Тест для проверки CRC32 в конце gzip
+	 */
+	@Test
+	public void testGzipCrc() throws IOException {
+		byte[] body = gzip(data);
+		body[body.length - 8] ^= 1;
+		try {
+			decode(body, "gzip");
+			fail("crc mismatch not detected");
+		} catch (ZipException e) {}
+	}
+
+	/**
+	 * Тест для проверки оборванного сжатого потока
+	 */
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] body = gzip(data);
+		try {
+			decode(Arrays.copyOf(body, body.length / 2), "gzip");
+			fail("truncated stream not detected");
+		} catch (EOFException e) {}
+	}
+
+	/**
+	 * Тест для проверки возврата Inflater в пул
+	 */
+	@Test
+	public void testPool() {
+		Inflater inf = pool.acquire(true);
+		pool.release(inf, true);
+		assertSame(pool.acquire(true), inf);
+		assertTrue(pool.acquire(false) != inf);
+	}
+}
@@ -0,0 +1,141 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.*;
+
+public class TestDiskWriter {
+	private static final int BUFFER = 1000;
+	private static final int COUNT = 50;
+	private File file;
+	private RandomAccessFile data;
+	private FileJournal journal;
+	private DownloadFile download;
+	private byte[] bytes;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("test", ".bin");
+		data = new RandomAccessFile(file, "rw");
+		journal = FileJournal.open(file.getPath(), data.getChannel(), BUFFER * COUNT, "\"v1\"", null, true);
+		data.setLength(BUFFER * COUNT);
+		bytes = new byte[BUFFER * COUNT];
+		new Random(1).nextBytes(bytes);
+		final FileChannel channel = data.getChannel();
+		download = new DownloadFile(null, "http://host/test", file.getName()) {
+			FileChannel getChannel() {
+				return channel;
+			}
+
+			FileJournal getJournal() {
+				return journal;
+			}
+
+			String getPath() {
+				return file.getPath();
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		journal.close();
+		data.close();
+		file.delete();
+		new File(file.getPath() + ".journal").delete();
+	}
+
+	/**
+	 * Пишет все части файла в обратном порядке
+	 */
+	private void writeAll(int writers) throws IOException {
+		BufferPool buffers = new BufferPool(BUFFER, 4, new LongAdder());
+		DiskWriter writer = new DiskWriter(writers, buffers);
+		PendingWrites pending = new PendingWrites();
+		for (int i = COUNT - 1; i >= 0; i--) {
+			ByteBuffer buffer = buffers.acquire();						//Не больше 4 буферов сразу
+			buffer.put(bytes, i * BUFFER, BUFFER);
+			buffer.flip();
+			writer.submit(new WriteJob(download, buffer, i * BUFFER, pending));
+		}
+		assertNull(pending.await());
+		writer.stop();
+		assertTrue(journal.isComplete());
+		assertArrayEquals(Files.readAllBytes(file.toPath()), bytes);
+	}
+
+	/**
+	 * Тест для проверки записи потоками-писателями
+	 */
+	@Test
+	public void testWriters() throws IOException {
+		writeAll(2);
+	}
+
+	/**
+	 * Тест для проверки записи в потоке загрузки
+	 */
+	@Test
+	public void testInline() throws IOException {
+		writeAll(0);
+	}
+
+	/**
+	 * Тест для проверки ошибки записи
+	 */
+	@Test
+	public void testError() throws IOException {
+		BufferPool buffers = new BufferPool(BUFFER, 4, new LongAdder());
+		DiskWriter writer = new DiskWriter(1, buffers);
+		PendingWrites pending = new PendingWrites();
+		data.close();
+		ByteBuffer buffer = buffers.acquire();
+		buffer.put(bytes, 0, BUFFER);
+		buffer.flip();
+		writer.submit(new WriteJob(download, buffer, 0, pending));
+		assertNotNull(pending.await());
+		writer.stop();
+	}
+
+	/**
+	 * Тест для проверки неожиданной ошибки (RuntimeException) при записи:
+	 * буфер завершается с ошибкой, а писатель продолжает работать
+	 */
+	@Test
+	public void testRuntimeError() throws IOException {
+		BufferPool buffers = new BufferPool(BUFFER, 4, new LongAdder());
+		DiskWriter writer = new DiskWriter(1, buffers);
+		DownloadFile broken = new DownloadFile(null, "http://host/broken", "broken") {
+			FileChannel getChannel() {
+				return data.getChannel();
+			}
+
+			String getPath() {
+				return file.getPath();
+			}
+		};																//Журнала нет - record() бросит NullPointerException
+		PendingWrites failed = new PendingWrites();
+		ByteBuffer buffer = buffers.acquire();
+		buffer.put(bytes, 0, BUFFER);
+		buffer.flip();
+		writer.submit(new WriteJob(broken, buffer, 0, failed));
+		assertNotNull(failed.await());
+		PendingWrites pending = new PendingWrites();
+		for (int i = 0; i < COUNT; i++) {
+			buffer = buffers.acquire();									//Буфер с ошибкой вернулся в пул
+			buffer.put(bytes, i * BUFFER, BUFFER);
+			buffer.flip();
+			writer.submit(new WriteJob(download, buffer, i * BUFFER, pending));
+		}
+		assertNull(pending.await());
+		writer.stop();
+		assertTrue(journal.isComplete());
+	}
+}
@@ -0,0 +1,247 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.*;
+
+public class TestDownloadDaemon {
+	private File spool;
+	private File folder;
+	private DownloadService service;
+	private DownloadDaemon daemon;
+	private int port;
+
+	@Before
+	public void setUp() throws IOException {
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		spool = Files.createTempDirectory("spool").toFile();
+		folder = Files.createTempDirectory("out").toFile();
+		DownloadSettings settings = new DownloadSettings();
+		settings.setSpool(spool.getPath());
+		settings.setRetries(0);
+		settings.setCache(false);
+		settings.setProgressInterval(0);
+		settings.setDaemonPort(port);
+		service = new DownloadService(2, 1024*1024, settings);
+		daemon = new DownloadDaemon(service, folder.getPath(), settings);
+	}
+
+	@After
+	public void tearDown() {
+		daemon.stop();
+		service.stop();
+		for (File dir: new File[] {spool, folder})
+			delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child: files)
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * Запрос к службе
+	 * @param body тело POST или null для GET
+	 * @return код ответа и тело через пробел
+	 */
+	private String request(String path, String body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)new URL("http://127.0.0.1:" + port + path).openConnection();
+		if (body != null) {
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		int code = conn.getResponseCode();
+		InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; in != null && (n = in.read(buffer)) != -1; )
+			text.write(buffer, 0, n);
+		return code + " " + new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Ждет, пока в папке spool не появится файл
+	 */
+	private boolean waitFor(File file) throws InterruptedException {
+		for (int i = 0; i < 100 && !file.exists(); i++)
+			Thread.sleep(100);
+		return file.exists();
+	}
+
+	/**
+	 * Тест для проверки файла ссылок из spool: незагруженный url - файл *.failed
+	 */
+	@Test
+	public void testSpoolFailed() throws Exception {
+		Files.write(new File(spool, "links.tmp").toPath(), "http://127.0.0.1:1/none.bin none.bin\n".getBytes());
+		Thread.sleep(1500);
+		assertTrue(new File(spool, "links.tmp").exists());						//Недописанный файл не берется
+		new File(spool, "links.tmp").renameTo(new File(spool, "links.txt"));
+		assertTrue(waitFor(new File(spool, "links.txt" + DownloadDaemon.FAILED)));
+		DownLoaderFiles job = daemon.get(1);
+		assertTrue(job.isFinished());
+		assertEquals(1, job.getFilesFailed());
+		assertTrue(job.toJson().contains("\"state\":\"finished\""));
+		assertNull(daemon.get(2));
+	}
+
+	/**
+	 * Тест для проверки пустого задания: файл *.done
+	 */
+	@Test
+	public void testSpoolDone() throws Exception {
+		Files.write(new File(spool, "empty.txt").toPath(), new byte[0]);
+		assertTrue(waitFor(new File(spool, "empty.txt" + DownloadDaemon.DONE)));
+		assertFalse(new File(spool, "empty.txt").exists());
+		assertTrue(daemon.toJson().startsWith("[{\"id\":1,"));
+	}
+
+	/**
+	 * Тест для проверки POST /jobs, GET /jobs и GET /jobs/номер
+	 */
+	@Test
+	public void testPostAndGet() throws Exception {
+		LocalOrigin origin = new LocalOrigin();
+		try {
+			String url = origin.addFile("/a.bin", 100000);
+			String created = request("/jobs?folder=sub", url + " a.bin\n");
+			assertTrue(created, created.startsWith("201 {\"id\":1,"));
+			DownLoaderFiles job = daemon.get(1);
+			job.thrd.join(10000);
+			assertTrue(job.isFinished());
+			File saved = new File(folder, "sub/a.bin");
+			assertArrayEquals(origin.getFile("/a.bin"), Files.readAllBytes(saved.toPath()));
+			String one = request("/jobs/1", null);
+			assertTrue(one, one.startsWith("200 {\"id\":1,") && one.contains("\"state\":\"finished\"") && one.contains("\"done\":1"));
+			String all = request("/jobs", null);
+			assertTrue(all, all.startsWith("200 [{\"id\":1,"));
+			assertEquals(0, service.getCacheCount());						//Кэш законченного задания служба не держит
+		} finally {
+			origin.stop();
+		}
+	}
+
+	/**
+	 * Тест для проверки ошибок: нет задания, папка или файл ссылок вне -o, неверный метод
+	 */
+	@Test
+	public void testErrors() throws Exception {
+		assertTrue(request("/jobs/99", null).startsWith("404 "));
+		assertTrue(request("/jobs/abc", null).startsWith("404 "));
+		File outside = Files.createTempDirectory("outside").toFile();
+		try {
+			assertTrue(request("/jobs?folder=" + URLEncoder.encode(outside.getPath(), "UTF-8"), "").startsWith("400 "));
+			assertTrue(request("/jobs?folder=..%2Fescape", "").startsWith("400 "));
+			File links = new File(outside, "links.txt");
+			Files.write(links.toPath(), new byte[0]);
+			assertTrue(request("/jobs?file=" + URLEncoder.encode(links.getPath(), "UTF-8"), "").startsWith("400 "));
+			assertTrue(request("/jobs?file=none.txt", "").startsWith("400 "));
+		} finally {
+			delete(outside);
+		}
+		assertNull(daemon.get(1));											//Ни одно задание не создано
+		HttpURLConnection conn = (HttpURLConnection)new URL("http://127.0.0.1:" + port + "/jobs").openConnection();
+		conn.setRequestMethod("DELETE");
+		assertEquals(405, conn.getResponseCode());
+	}
+
+	/**
+	 * Тест для проверки имен из тела POST: имя с '..' или абсолютное
+	 * не загружается, файл вне папки задания не появляется
+	 */
+	@Test
+	public void testEscapingNames() throws Exception {
+		LocalOrigin origin = new LocalOrigin();
+		File absolute = new File(folder.getParentFile(), folder.getName() + "-abs.bin");
+		try {
+			String url = origin.addFile("/a.bin", 100000);
+			String created = request("/jobs?folder=sub", url + " ../escape.bin\n" + url + " " + absolute.getPath() + "\n"
+				+ url + " sub2/../../escape2.bin\n" + url + " ok.bin\n");
+			assertTrue(created, created.startsWith("201 "));
+			DownLoaderFiles job = daemon.get(1);
+			job.thrd.join(10000);
+			assertTrue(job.isFinished());
+			assertFalse(new File(folder, "escape.bin").exists());
+			assertFalse(new File(folder, "escape2.bin").exists());
+			assertFalse(absolute.exists());
+			assertTrue(new File(folder, "sub/ok.bin").exists());
+			assertEquals(3, job.getFilesFailed());
+		} finally {
+			absolute.delete();
+			origin.stop();
+		}
+	}
+
+	/**
+	 * Тест для проверки запроса из браузера: с заголовком Origin задание не создается
+	 */
+	@Test
+	public void testOrigin() throws Exception {
+		try (Socket socket = new Socket("127.0.0.1", port)) {				//HttpURLConnection не отправляет Origin
+			String body = "http://127.0.0.1:1/a.bin a.bin\n";
+			socket.getOutputStream().write(("POST /jobs HTTP/1.1\r\nHost: 127.0.0.1\r\nOrigin: http://evil.example\r\n"
+				+ "Content-Type: text/plain\r\nContent-Length: " + body.length() + "\r\nConnection: close\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			assertTrue(in.readLine().startsWith("HTTP/1.1 403"));
+		}
+		assertNull(daemon.get(1));
+	}
+
+	/**
+	 * Тест для проверки, что служба забывает старые законченные задания
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		for (int i = 0; i < 3; i++)
+			request("/jobs", "");
+		for (int id = 1; id <= 3; id++)
+			daemon.get(id).thrd.join(10000);
+		daemon.setMaxFinished(1);
+		daemon.finishJobs();
+		assertNull(daemon.get(1));
+		assertNull(daemon.get(2));
+		assertNotNull(daemon.get(3));
+	}
+
+	/**
+	 * Тест для проверки лимита скорости на лету: после снижения через
+	 * POST /speed загрузка идет не быстрее лимита, после снятия - доходит сразу
+	 */
+	@Test
+	public void testSpeed() throws Exception {
+		LocalOrigin origin = new LocalOrigin();
+		try {
+			String url = origin.addFile("/big.bin", 3*1024*1024);
+			assertTrue(request("/speed", null).startsWith("200 {\"limit\":1048576}"));
+			assertTrue(request("/speed?limit=x", "").startsWith("400 "));
+			assertTrue(request("/speed?limit=-1", "").startsWith("400 "));
+			assertTrue(request("/speed?limit=200000", "").startsWith("200 {\"limit\":200000}"));
+			assertEquals(200000, service.getMaxSpeed());
+			request("/jobs", url + " big.bin\n");
+			DownLoaderFiles job = daemon.get(1);
+			Thread.sleep(500);
+			long before = service.getMetrics().bytes.sum();
+			Thread.sleep(1000);
+			long slow = service.getMetrics().bytes.sum() - before;
+			assertTrue("slow " + slow, slow > 0 && slow < 400000);				//200000 байт/сек с запасом на ведро
+			assertTrue(request("/speed?limit=0", "").startsWith("200 {\"limit\":0}"));
+			job.thrd.join(5000);
+			assertTrue(job.isFinished());										//Остаток при 200000 байт/сек - больше 10 сек
+			assertEquals(0, job.getFilesFailed());
+			assertArrayEquals(origin.getFile("/big.bin"), Files.readAllBytes(new File(folder, "big.bin").toPath()));
+		} finally {
+			origin.stop();
+		}
+	}
+}
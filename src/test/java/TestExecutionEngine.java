@@ -0,0 +1,91 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class TestExecutionEngine {
+	private static final int TASKS = 20;
+
+	/**
+	 * @return true, если JVM поддерживает виртуальные потоки (Java 21+)
+	 */
+	private static boolean virtualSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true, если текущий поток виртуальный
+	 */
+	private static boolean isVirtual() {
+		try {
+			return (Boolean)Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Выполняет TASKS задач на движке
+	 * @return Макс. кол-во одновременно выполнявшихся задач
+	 */
+	private int run(ExecutionEngine engine, final AtomicInteger virtual) throws InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(TASKS);
+		for (int i = 0; i < TASKS; i++)
+			engine.execute(new Runnable() {
+				public void run() {
+					int now = running.incrementAndGet();
+					while (max.get() < now && !max.compareAndSet(max.get(), now));
+					if (isVirtual())
+						virtual.incrementAndGet();
+					LocalOrigin.sleep(20);
+					running.decrementAndGet();
+					done.countDown();
+				}
+			});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		engine.shutdown();
+		return max.get();
+	}
+
+	/**
+	 * Тест для проверки пула потоков: не больше countThreads задач сразу
+	 */
+	@Test
+	public void testThreads() throws InterruptedException {
+		ExecutionEngine engine = ExecutionEngines.create(ExecutionEngines.THREADS, 3);
+		assertEquals(ExecutionEngines.THREADS, engine.getName());
+		AtomicInteger virtual = new AtomicInteger();
+		assertTrue(run(engine, virtual) <= 3);
+		assertEquals(0, virtual.get());
+	}
+
+	/**
+	 * Тест для проверки --engine virtual: на Java 21+ задачи идут в виртуальных
+	 * потоках с тем же ограничением, на старых JVM - пул потоков
+	 */
+	@Test
+	public void testVirtual() throws InterruptedException {
+		ExecutionEngine engine = ExecutionEngines.create(ExecutionEngines.VIRTUAL, 3);
+		AtomicInteger virtual = new AtomicInteger();
+		int max = run(engine, virtual);
+		assertTrue(max <= 3);
+		if (virtualSupported()) {
+			assertEquals(ExecutionEngines.VIRTUAL, engine.getName());
+			assertEquals(TASKS, virtual.get());
+		} else {
+			assertEquals(ExecutionEngines.THREADS, engine.getName());
+			assertEquals(0, virtual.get());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestFileJournal {
+	private static final String PATH = "journal_test.bin";
+	private RandomAccessFile data;
+
+	/**
+	 * Открываем загружаемый файл
+	 */
+	@Before
+	public void setUpJournal() throws IOException {
+		data = new RandomAccessFile(PATH, "rw");
+	}
+
+	/**
+	 * Тест для проверки продолжения загрузки по журналу
+	 */
+	@Test
+	public void testResume() throws IOException {
+		FileJournal journal = FileJournal.open(PATH, data.getChannel(), 1000, "\"v1\"", null, true);
+		assertFalse(journal.isResumed());
+		data.setLength(1000);
+		journal.record(0, 99);
+		journal.record(100, 199);
+		journal.record(500, 599);
+		journal.close();
+		assertTrue(new File(PATH + ".journal").exists());					//Файл не загружен, журнал остался
+
+		journal = FileJournal.open(PATH, data.getChannel(), 1000, "\"v1\"", null, true);
+		assertTrue(journal.isResumed());
+		assertEquals(journal.doneBytes(), 300);
+		List<Segment> missing = journal.missing();
+		assertEquals(missing.size(), 2);
+		assertEquals(missing.get(0).getPos(), 200);
+		assertEquals(missing.get(0).getEnd(), 499);
+		assertEquals(missing.get(1).getPos(), 600);
+		assertEquals(missing.get(1).getEnd(), 999);
+
+		journal.record(200, 499);
+		journal.record(600, 999);
+		assertTrue(journal.isComplete());
+		journal.close();
+		assertFalse(new File(PATH + ".journal").exists());					//Файл загружен, журнал удален
+	}
+
+	/**
+	 * Тест для проверки, что журнал не используется, если файл на сервере изменился
+	 */
+	@Test
+	public void testChangedFile() throws IOException {
+		FileJournal journal = FileJournal.open(PATH, data.getChannel(), 1000, "\"v1\"", null, true);
+		data.setLength(1000);
+		journal.record(0, 99);
+		journal.close();
+
+		journal = FileJournal.open(PATH, data.getChannel(), 1000, "\"v2\"", null, true);
+		assertFalse(journal.isResumed());
+		assertEquals(journal.doneBytes(), 0);
+		journal.close();
+	}
+
+	/**
+	 * Удаляем файл и журнал
+	 */
+	@After
+	public void tearJournal() throws IOException {
+		data.close();
+		new File(PATH).delete();
+		new File(PATH + ".journal").delete();
+	}
+}
@@ -0,0 +1,54 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestFinishedLinks {
+
+	/**
+	 * Тест для проверки поиска после роста таблицы, в том числе
+	 * хэшей с одинаковыми младшими битами
+	 */
+	@Test
+	public void testPutGet() {
+		FinishedLinks links = new FinishedLinks();
+		for (long i = 0; i < 1000; i++)
+			links.put(i << 40, "u" + i, i % 3 == 0 ? null : "f" + i);
+		assertEquals(1000, links.size());
+		for (long i = 0; i < 1000; i++) {
+			assertTrue(links.contains(i << 40, "u" + i));
+			assertEquals(i % 3 == 0 ? null : "f" + i, links.get(i << 40, "u" + i));
+		}
+		assertFalse(links.contains(7, "u7"));
+		assertNull(links.get(7, "u7"));
+	}
+
+	/**
+	 * Тест для проверки повторного put того же хэша
+	 */
+	@Test
+	public void testReplace() {
+		FinishedLinks links = new FinishedLinks();
+		links.put(LinkReader.hash("http://a/x"), "http://a/x", null);
+		links.put(LinkReader.hash("http://a/x"), "http://a/x", "x");
+		assertEquals(1, links.size());
+		assertEquals("x", links.get(LinkReader.hash("http://a/x"), "http://a/x"));
+	}
+
+	/**
+	 * Тест для проверки разных url с одинаковым хэшем: ни один не считается
+	 * обработанным из-за другого
+	 */
+	@Test
+	public void testCollision() {
+		FinishedLinks links = new FinishedLinks();
+		links.put(42, "http://a/x", "x");
+		assertFalse(links.contains(42, "http://a/y"));
+		assertNull(links.get(42, "http://a/y"));
+		links.put(42, "http://a/y", "y");
+		assertEquals(2, links.size());
+		assertEquals("x", links.get(42, "http://a/x"));
+		assertEquals("y", links.get(42, "http://a/y"));
+	}
+}
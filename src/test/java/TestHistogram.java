@@ -0,0 +1,37 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestHistogram {
+
+	/**
+	 * Тест для проверки перцентилей с погрешностью интервала (1/16)
+	 */
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		for (long value = 1; value <= 10000; value++)
+			histogram.record(value);
+		assertEquals(histogram.getCount(), 10000);
+		assertEquals(histogram.getMax(), 10000);
+		assertEquals(histogram.percentile(50), 5000, 5000 / 16.0);
+		assertEquals(histogram.percentile(99), 9900, 9900 / 16.0);
+		assertEquals(histogram.percentile(100), 10000, 10000 / 16.0);
+		assertEquals(histogram.getMean(), 5000.5, 0.001);
+	}
+
+	/**
+	 * Тест для проверки пустой гистограммы и малых значений
+	 */
+	@Test
+	public void testSmallValues() {
+		Histogram histogram = new Histogram();
+		assertEquals(histogram.percentile(99), 0);
+		histogram.record(3);
+		histogram.record(-5);
+		assertEquals(histogram.percentile(100), 3);
+		assertEquals(histogram.percentile(50), 0);
+	}
+}
@@ -0,0 +1,80 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestHostLimit {
+	private static final long PERIOD = 20000000;						//Период подстройки, нс
+
+	private HostLimit host;
+
+	@Before
+	public void setUp() {
+		host = new HostLimit("localhost", 2, 8);
+		host.fileStarted(new DownloadFile(null, "http://localhost/file", "file"));
+	}
+
+	/**
+	 * Загружает count байт за период и делает шаг подстройки
+	 */
+	private void period(long count, int connections) {
+		host.connections.set(connections);
+		host.bytes.add(count);
+		host.adjust(PERIOD);
+	}
+
+	/**
+	 * Тест для проверки добавления соединений, пока скорость растет
+	 */
+	@Test
+	public void testGrowWhileFaster() {
+		period(1000000, 2);
+		assertEquals(host.getLimit(), 3);
+		period(2000000, 3);
+		assertEquals(host.getLimit(), 4);
+		period(4000000, 4);
+		assertEquals(host.getLimit(), 5);
+	}
+
+	/**
+	 * Тест для проверки отката соединения, которое не прибавило скорости
+	 */
+	@Test
+	public void testRevertWithoutGain() {
+		period(1000000, 2);
+		assertEquals(host.getLimit(), 3);
+		period(500000, 3);
+		assertEquals(host.getLimit(), 2);
+		period(1000000, 2);												//После отката лимит держится
+		assertEquals(host.getLimit(), 2);
+	}
+
+	/**
+	 * Тест для проверки уменьшения лимита при ошибках
+	 */
+	@Test
+	public void testErrorsHalveLimit() {
+		period(1000000, 2);
+		period(2000000, 3);
+		period(4000000, 4);
+		host.errors.increment();
+		period(4000000, 5);
+		assertEquals(host.getLimit(), 2);
+		host.errors.increment();
+		period(4000000, 2);
+		host.errors.increment();
+		period(4000000, 1);
+		assertEquals(host.getLimit(), 1);								//Меньше одного соединения не бывает
+	}
+
+	/**
+	 * Тест для проверки, что лимит не растет, если соединения не заняты
+	 */
+	@Test
+	public void testIdleConnections() {
+		period(1000000, 1);
+		period(2000000, 1);
+		assertEquals(host.getLimit(), 2);
+	}
+}
@@ -0,0 +1,292 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Загрузка файлов с локального сервера целиком: скорость, соблюдение -l,
+ * время загрузки и побайтовое совпадение при сбоях сервера
+ */
+public class TestIntegration {
+	private static final int KB = 1024;
+	private static final int MB = 1024*1024;
+	private static final long UNLIMITED = 1024L*MB;			//-l, который не мешает загрузке
+	private static final long TIMEOUT = 30000;				//Дольше - загрузка зависла, мс
+
+	private LocalOrigin origin;
+	private File folder;
+	private DownloadSettings settings;
+	private DownLoaderFiles job;
+
+	@Before
+	public void setUp() throws IOException {
+		origin = new LocalOrigin();
+		folder = Files.createTempDirectory("integration").toFile();
+		settings = new DownloadSettings();
+		settings.setCache(false);
+		settings.setProgressInterval(0);
+	}
+
+	@After
+	public void tearDown() {
+		origin.stop();
+		for (File file: folder.listFiles())
+			file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Добавляет на сервер count файлов размером около size
+	 * @return пути файлов
+	 */
+	private List<String> addFiles(int count, int size) {
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String path = "/f" + i + ".bin";
+			origin.addFile(path, size + i * 1000);				//Разный размер - разное содержимое
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * Загружает файлы и ждет окончания
+	 * @return время загрузки, мс
+	 */
+	private long download(List<String> paths, int countThreads, long speed) throws Exception {
+		File links = new File(folder, "links.txt");
+		try (FileWriter fw = new FileWriter(links)) {
+			for (String path: paths)
+				fw.write(origin.url(path) + " " + path.substring(1) + "\n");
+		}
+		long start = System.nanoTime();
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), countThreads, speed, settings);
+		job.thrd.join(TIMEOUT);
+		assertFalse("download hung", job.thrd.isAlive());
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Проверяет, что все файлы загружены побайтово и журналов не осталось
+	 */
+	private void assertSaved(List<String> paths) throws IOException {
+		long total = 0;
+		for (String path: paths) {
+			File file = new File(folder, path.substring(1));
+			assertArrayEquals(origin.getFile(path), Files.readAllBytes(file.toPath()));
+			assertFalse(FileJournal.exists(file.getPath()));
+			total += origin.getFile(path).length;
+		}
+		assertEquals(total, job.totalDownloaded.get());
+		assertEquals(paths.size(), job.getMetrics().filesDone.sum());
+	}
+
+	/**
+	 * @return Общий размер файлов
+	 */
+	private long size(List<String> paths) {
+		long total = 0;
+		for (String path: paths)
+			total += origin.getFile(path).length;
+		return total;
+	}
+
+	/**
+	 * Тест для проверки общей скорости: соединения медленные,
+	 * файлы должны загружаться параллельно
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		origin.setBandwidth(MB);
+		List<String> paths = addFiles(8, MB);
+		long millis = download(paths, 8, UNLIMITED);
+		assertSaved(paths);
+		assertTrue("too slow: " + millis + "ms", size(paths) * 1000 / millis >= 3 * MB);	//Одно соединение дало бы 1MB/s
+		assertTrue(origin.getBytesSent() <= size(paths) + 64 * KB);						//Ничего не загружено дважды
+	}
+
+	/**
+	 * Тест для проверки ограничения -l на многих файлах сразу
+	 */
+	@Test
+	public void testSpeedLimit() throws Exception {
+		long speed = 2 * MB;
+		List<String> paths = addFiles(6, MB);
+		long millis = download(paths, 8, speed);
+		assertSaved(paths);
+		long rate = size(paths) * 1000 / millis;
+		assertTrue("limit exceeded: " + rate, rate <= speed * 11 / 10);
+		assertTrue("too slow: " + rate, rate >= speed * 7 / 10);
+	}
+
+	/**
+	 * Тест для проверки многих мелких файлов при задержке ответа
+	 */
+	@Test
+	public void testLatency() throws Exception {
+		origin.setLatency(100);
+		List<String> paths = addFiles(32, 64 * KB);
+		long millis = download(paths, 8, UNLIMITED);
+		assertSaved(paths);
+		assertTrue("too slow: " + millis + "ms", millis < 3000);						//Подряд - больше 6 секунд
+	}
+
+	/**
+	 * Тест для проверки сервера без Range
+	 */
+	@Test
+	public void testNoRanges() throws Exception {
+		origin.setRanges(false);
+		origin.setBandwidth(4 * MB);
+		List<String> paths = addFiles(4, 512 * KB);
+		download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+	}
+
+	/**
+	 * Тест для проверки обрывов соединения посреди ответа
+	 */
+	@Test
+	public void testResets() throws Exception {
+		origin.setResets(3, 100 * KB);
+		List<String> paths = addFiles(2, 2 * MB);
+		download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+		assertTrue(job.getMetrics().retries.sum() >= 3);
+	}
+
+	/**
+	 * Тест для проверки ответов короче запрошенного диапазона
+	 */
+	@Test
+	public void testWrongLength() throws Exception {
+		origin.setWrongLengths(3);
+		List<String> paths = addFiles(2, MB);
+		download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+		assertTrue(job.getMetrics().retries.sum() >= 3);
+	}
+
+	/**
+	 * Тест для проверки нехватки буферов при лимите соединений на хост: потоки,
+	 * ждущие соединения, не должны держать буферы тех, у кого соединение есть
+	 */
+	@Test
+	public void testFewBuffersPerHostLimit() throws Exception {
+		settings.setMaxPerHost(2);
+		settings.setBufferSize(64 * KB);
+		settings.setBufferMemory(256 * KB);							//4 буфера на 16 потоков
+		settings.setAdaptive(false);
+		List<String> paths = addFiles(16, 256 * KB);
+		download(paths, 16, UNLIMITED);
+		assertSaved(paths);
+	}
+
+	/**
+	 * Тест для проверки обрывов без поддержки Range: загрузка продолжается,
+	 * пропуская уже записанное начало файла
+	 */
+	@Test
+	public void testResetsNoRanges() throws Exception {
+		origin.setRanges(false);
+		origin.setResets(2, 300 * KB);
+		List<String> paths = addFiles(1, MB);
+		download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+	}
+
+	/**
+	 * Тест для проверки, что новая загрузка не переписывает файл, на который
+	 * ссылается другое имя: после --dedup b.bin - жесткая ссылка на a.bin
+	 */
+	@Test
+	public void testLinkedOutputNotRewritten() throws Exception {
+		settings.setDedup(true);
+		byte[] old = new byte[256 * KB];
+		new Random(1).nextBytes(old);
+		origin.addFile("/a.bin", old);
+		origin.addFile("/b.bin", old.clone());
+		download(Arrays.asList("/a.bin", "/b.bin"), 4, UNLIMITED);
+		origin.addFile("/a.bin", 300 * KB);							//Файл на сервере изменился
+		List<String> paths = Arrays.asList("/a.bin");
+		download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+		assertArrayEquals(old, Files.readAllBytes(new File(folder, "b.bin").toPath()));
+	}
+
+	/**
+	 * Тест для проверки повтора url после окончания его загрузки: копия
+	 * берется из сохраненного файла, а не загружается снова
+	 */
+	@Test
+	public void testRepeatedLink() throws Exception {
+		origin.setLatency(300);
+		origin.addFile("/a.bin", 200 * KB);
+		origin.addFile("/slow.bin", 100 * KB);
+		File links = new File(folder, "links.txt");
+		try (FileWriter fw = new FileWriter(links)) {
+			fw.write(origin.url("/a.bin") + " a.bin\n");
+			fw.write(origin.url("/slow.bin") + " slow.bin\n");		//Пока он ждет, a.bin успевает загрузиться
+			fw.write(origin.url("/a.bin") + " c.bin\n");
+		}
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), 1, UNLIMITED, settings);
+		job.thrd.join(TIMEOUT);
+		assertFalse("download hung", job.thrd.isAlive());
+		assertArrayEquals(origin.getFile("/a.bin"), Files.readAllBytes(new File(folder, "c.bin").toPath()));
+		assertEquals(2, job.getMetrics().filesDone.sum());
+	}
+
+	/**
+	 * Тест для проверки зависшего ответа (slow-loris): соединение
+	 * обрывается по таймауту чтения, диапазон загружается заново
+	 */
+	@Test
+	public void testSlowLoris() throws Exception {
+		settings.setReadTimeout(1);
+		origin.setSlowLoris(2, 1500);
+		List<String> paths = addFiles(2, MB);
+		long millis = download(paths, 4, UNLIMITED);
+		assertSaved(paths);
+		assertTrue("too slow: " + millis + "ms", millis < 10000);
+	}
+
+	/**
+	 * Тест для проверки ответа 304 при заданном SHA-256: целый файл пропускается,
+	 * испорченный файл того же размера загружается заново
+	 */
+	@Test
+	public void testNotModifiedChecksum() throws Exception {
+		settings.setCache(true);
+		origin.addFile("/a.bin", MB);
+		byte[] data = origin.getFile("/a.bin");
+		String sha = FileAliases.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+		File links = new File(folder, "links.txt");
+		Files.write(links.toPath(), (origin.url("/a.bin") + " a.bin " + sha + "\n").getBytes());
+		File saved = new File(folder, "a.bin");
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), 2, UNLIMITED, settings);
+		job.thrd.join(TIMEOUT);
+		assertArrayEquals(data, Files.readAllBytes(saved.toPath()));
+
+		long sent = origin.getBytesSent();
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), 2, UNLIMITED, settings);
+		job.thrd.join(TIMEOUT);
+		assertEquals(1, job.getMetrics().filesDone.sum());
+		assertTrue(origin.getBytesSent() - sent < KB);						//Не изменился - не загружается
+
+		byte[] broken = data.clone();
+		broken[MB / 2] ^= 1;
+		Files.write(saved.toPath(), broken);
+		sent = origin.getBytesSent();
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), 2, UNLIMITED, settings);
+		job.thrd.join(TIMEOUT);
+		assertEquals(1, job.getMetrics().filesDone.sum());
+		assertTrue(origin.getBytesSent() - sent >= MB);						//Испорченный файл загружен заново
+		assertArrayEquals(data, Files.readAllBytes(saved.toPath()));
+	}
+}
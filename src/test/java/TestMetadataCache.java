@@ -0,0 +1,68 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.*;
+
+public class TestMetadataCache {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("test", ".cache");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Тест для проверки сохранения и чтения кэша
+	 */
+	@Test
+	public void testSaveLoad() {
+		MetadataCache cache = new MetadataCache(file.getPath());
+		cache.put("http://host/a", new UrlInfo(5000000000L, true, "\"abc\"", "Mon, 01 Jan 2024 00:00:00 GMT"));
+		cache.put("http://host/b", new UrlInfo(10, false, null, null));
+		cache.save();
+
+		cache = new MetadataCache(file.getPath());
+		UrlInfo info = cache.get("http://host/a");
+		assertEquals(info.length, 5000000000L);
+		assertTrue(info.ranges);
+		assertEquals(info.etag, "\"abc\"");
+		assertEquals(info.lastModified, "Mon, 01 Jan 2024 00:00:00 GMT");
+		info = cache.get("http://host/b");
+		assertFalse(info.ranges);
+		assertNull(info.etag);
+		assertNull(info.lastModified);
+		assertNull(cache.get("http://host/c"));
+	}
+
+	/**
+	 * Тест для проверки пропуска испорченных строк
+	 */
+	@Test
+	public void testBadLines() throws IOException {
+		Files.write(file.toPath(), "http://host/a\t12\t1\t\t\nbroken\nhttp://host/b\tx\t1\t\t\n".getBytes(StandardCharsets.UTF_8));
+		MetadataCache cache = new MetadataCache(file.getPath());
+		assertEquals(cache.get("http://host/a").length, 12);
+		assertNull(cache.get("http://host/b"));
+	}
+
+	/**
+	 * Тест для проверки размера файла из Content-Range
+	 */
+	@Test
+	public void testTotalLength() {
+		assertEquals(DownloadFile.totalLength("bytes 0-0/3000000"), 3000000);
+		assertEquals(DownloadFile.totalLength("bytes 0-0/*"), -1);
+		assertEquals(DownloadFile.totalLength(null), -1);
+	}
+}
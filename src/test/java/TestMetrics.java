@@ -0,0 +1,25 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestMetrics {
+
+	/**
+	 * Тест для проверки учета двух файлов с одним url: завершение одного
+	 * не убирает из активных другой
+	 */
+	@Test
+	public void testSameLink() {
+		Metrics metrics = new Metrics();
+		FileMetrics first = metrics.startFile("http://host/a", "one/a");
+		FileMetrics second = metrics.startFile("http://host/a", "two/a");
+		assertEquals(2, metrics.activeFiles().size());
+		metrics.finishFile(first, true);
+		assertEquals(1, metrics.activeFiles().size());
+		assertSame(second, metrics.activeFiles().iterator().next());
+		metrics.finishFile(second, true);
+		assertTrue(metrics.activeFiles().isEmpty());
+	}
+}
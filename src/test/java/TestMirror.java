@@ -0,0 +1,234 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestMirror {
+	private static final int KB = 1024;
+	private static final int MB = 1024*1024;
+	private static final long UNLIMITED = 1024L*MB;			//-l, который не мешает загрузке
+	private static final long TIMEOUT = 30000;				//Дольше - загрузка зависла, мс
+	private static final String PATH = "/f.bin";
+
+	private List<LocalOrigin> origins;
+	private File folder;
+	private DownloadSettings settings;
+	private DownLoaderFiles job;
+
+	@Before
+	public void setUp() throws IOException {
+		origins = new ArrayList<LocalOrigin>();
+		folder = Files.createTempDirectory("mirror").toFile();
+		settings = new DownloadSettings();
+		settings.setCache(false);
+		settings.setProgressInterval(0);
+	}
+
+	@After
+	public void tearDown() {
+		for (LocalOrigin origin: origins)
+			origin.stop();
+		for (File file: folder.listFiles())
+			file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Запускает сервер с файлом PATH
+	 * @param bandwidth скорость одного соединения, байт/сек, 0 - без ограничения
+	 */
+	private LocalOrigin origin(byte[] data, long bandwidth) throws IOException {
+		LocalOrigin origin = new LocalOrigin();
+		origin.addFile(PATH, data);
+		origin.setBandwidth(bandwidth);
+		origins.add(origin);
+		return origin;
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Загружает PATH с первого сервера, остальные - зеркала, и ждет окончания
+	 * @return загруженный файл
+	 */
+	private byte[] download(int countThreads) throws Exception {
+		StringBuilder line = new StringBuilder(origins.get(0).url(PATH) + " f.bin");
+		for (int i = 1; i < origins.size(); i++)
+			line.append(" mirror=").append(origins.get(i).url(PATH));
+		File links = new File(folder, "links.txt");
+		Files.write(links.toPath(), (line + "\n").getBytes());
+		job = new DownLoaderFiles(links.getPath(), folder.getPath(), countThreads, UNLIMITED, settings);
+		job.thrd.join(TIMEOUT);
+		assertFalse("download hung", job.thrd.isAlive());
+		assertEquals(1, job.getMetrics().filesDone.sum());
+		return Files.readAllBytes(new File(folder, "f.bin").toPath());
+	}
+
+	/**
+	 * Тест для проверки раздачи диапазонов по скорости: быстрое зеркало
+	 * загружает большую часть файла, медленное тоже участвует
+	 */
+	@Test
+	public void testShareBySpeed() throws Exception {
+		byte[] data = content(6 * MB, 1);
+		LocalOrigin slow = origin(data, 256 * KB);
+		LocalOrigin fast = origin(data, 2 * MB);
+		assertArrayEquals(data, download(4));
+		assertTrue("fast " + fast.getBytesSent() + ", slow " + slow.getBytesSent(), fast.getBytesSent() > 2 * slow.getBytesSent());
+		assertTrue(slow.getBytesSent() > 0);
+		assertTrue(fast.getBytesSent() + slow.getBytesSent() <= data.length + 256 * KB);	//Ничего не загружено дважды
+		assertEquals(0, job.getMetrics().mirrorsDropped.sum());
+	}
+
+	/**
+	 * Тест для проверки зависшего зеркала: оно отключается по таймауту чтения,
+	 * его диапазоны загружает основной url
+	 */
+	@Test
+	public void testDropStalledMirror() throws Exception {
+		settings.setReadTimeout(1);
+		byte[] data = content(2 * MB, 2);
+		origin(data, 0);
+		LocalOrigin stalled = origin(data, 0);
+		stalled.setSlowLoris(1000, 3000);
+		assertArrayEquals(data, download(4));
+		int requests = stalled.getRequests();
+		assertTrue(requests > 0 && requests <= 4);						//Не больше одного соединения на поток
+		assertTrue(stalled.getBytesSent() < 64 * KB);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());
+	}
+
+	/**
+	 * Тест для проверки зеркала, которое обрывает каждый ответ: после
+	 * нескольких ошибок подряд оно отключается
+	 */
+	@Test
+	public void testDropFailingMirror() throws Exception {
+		byte[] data = content(4 * MB, 3);
+		origin(data, 512 * KB);											//Загрузка идет долго, зеркало пробуется несколько раз
+		LocalOrigin failing = origin(data, 0);
+		failing.setResets(1000, 16 * KB);
+		assertArrayEquals(data, download(4));
+		assertTrue("requests " + failing.getRequests(), failing.getRequests() >= 3 && failing.getRequests() <= 3 + 4);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());	//3 ошибки подряд и уже открытые соединения
+	}
+
+	/**
+	 * Тест для проверки зеркала без файла: 404 отключает его сразу
+	 */
+	@Test
+	public void testDropMissingMirror() throws Exception {
+		byte[] data = content(2 * MB, 4);
+		origin(data, 0);
+		LocalOrigin missing = new LocalOrigin();
+		origins.add(missing);
+		assertArrayEquals(data, download(4));
+		assertTrue(missing.getRequests() <= 4);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());
+	}
+
+	/**
+	 * Тест для проверки зеркала с файлом другого размера: оно отключается
+	 * по первому ответу, его данные в файл не попадают
+	 */
+	@Test
+	public void testCrossCheckSize() throws Exception {
+		byte[] data = content(2 * MB, 5);
+		origin(data, 0);
+		LocalOrigin other = origin(content(2 * MB + 1, 6), 256 * KB);
+		assertArrayEquals(data, download(4));
+		assertTrue(other.getRequests() <= 4);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());
+	}
+
+	/**
+	 * Тест для проверки зеркала с другим ETag при том же размере
+	 */
+	@Test
+	public void testCrossCheckEtag() throws Exception {
+		byte[] data = content(2 * MB, 7);
+		origin(data, 0).setEtag("\"v1\"");
+		LocalOrigin other = origin(content(2 * MB, 8), 256 * KB);
+		other.setEtag("\"v2\"");
+		assertArrayEquals(data, download(4));
+		assertTrue(other.getRequests() <= 4);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());
+	}
+
+	/**
+	 * Тест для проверки, что последний url не отключается: после отказа
+	 * зеркала ошибки основного url только повторяются
+	 */
+	@Test
+	public void testLastSourceKept() throws Exception {
+		settings.setRetries(20);
+		byte[] data = content(2 * MB, 9);
+		LocalOrigin primary = origin(data, 0);
+		origins.add(new LocalOrigin());									//Зеркало без файла
+		primary.setResets(6, 64 * KB);									//Больше ошибок подряд, чем терпит зеркало
+		assertArrayEquals(data, download(2));
+		assertTrue(job.getMetrics().retries.sum() >= 6);
+		assertEquals(1, job.getMetrics().mirrorsDropped.sum());		//Только зеркало, основной url остался
+	}
+
+	/**
+	 * Тест для проверки разбора нескольких зеркал в строке файла ссылок
+	 */
+	@Test
+	public void testLinkMirrors() throws IOException {
+		File file = File.createTempFile("links", ".txt");
+		Files.write(file.toPath(), ("http://a/f.bin f.bin mirror=http://b/f.bin weight=2 mirror=http://c/f.bin\n"
+			+ "http://a/g.bin g.bin\n").getBytes());
+		try (LinkReader reader = new LinkReader(file.getPath())) {
+			Link link = reader.next();
+			assertEquals(Arrays.asList("http://b/f.bin", "http://c/f.bin"), link.getMirrors());
+			assertEquals(2, link.getWeight());
+			assertTrue(reader.next().getMirrors().isEmpty());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Тест для проверки средней скорости и счетчика ошибок зеркала
+	 */
+	@Test
+	public void testRateAndFailures() throws IOException {
+		Mirror mirror = new Mirror("http://b/f.bin", new URL("http://b/f.bin"));
+		assertEquals(0, mirror.getRate(), 0);
+		mirror.measured(1000, 1000000000L);
+		assertEquals(1000, mirror.getRate(), 0.001);
+		mirror.measured(5000, 1000000000L);
+		assertEquals(2000, mirror.getRate(), 0.001);					//Новое измерение с весом 1/4
+		assertFalse(mirror.failed());
+		assertFalse(mirror.failed());
+		mirror.succeeded();
+		assertFalse(mirror.failed());
+		assertFalse(mirror.failed());
+		assertTrue(mirror.failed());
+	}
+
+	/**
+	 * Тест для проверки валидаторов зеркала
+	 */
+	@Test
+	public void testValidator() throws IOException {
+		Mirror mirror = new Mirror("http://b/f.bin", new URL("http://b/f.bin"));
+		assertFalse(mirror.isChecked());
+		mirror.setValidators("W/\"weak\"", "Mon, 01 Jan 2024 00:00:00 GMT");
+		assertTrue(mirror.isChecked());
+		assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", mirror.getValidator());
+		assertFalse(Mirror.isStrong(mirror.getEtag()));
+		assertTrue(Mirror.isStrong("\"abc\""));
+	}
+}
@@ -0,0 +1,45 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestRetry {
+
+	/**
+	 * Тест для проверки роста паузы между повторами
+	 */
+	@Test
+	public void testRetryDelay() {
+		for (int attempt = 0; attempt < 20; attempt++) {
+			long full = Math.min(500L << attempt, 30000);
+			long delay = DownloadThread.retryDelay(attempt, 0);
+			assertTrue(delay >= full / 2);								//Случайна только половина паузы
+			assertTrue(delay <= full);
+		}
+	}
+
+	/**
+	 * Тест для проверки паузы, которую попросил сервер
+	 */
+	@Test
+	public void testRetryAfter() {
+		assertEquals(DownloadThread.retryDelay(0, 5000), 5000);
+		assertEquals(DownloadThread.retryDelay(0, 600000), 30000);		//Не дольше макс. паузы
+	}
+
+	/**
+	 * Тест для проверки разделения ошибок сервера на временные и неустранимые
+	 */
+	@Test
+	public void testRetryable() {
+		assertTrue(DownloadThread.isRetryable(503));
+		assertTrue(DownloadThread.isRetryable(429));
+		assertTrue(DownloadThread.isRetryable(408));
+		assertTrue(DownloadThread.isRetryable(500));
+		assertFalse(DownloadThread.isRetryable(404));
+		assertFalse(DownloadThread.isRetryable(403));
+		assertFalse(DownloadThread.isRetryable(416));
+		assertFalse(DownloadThread.isRetryable(501));
+	}
+}
@@ -0,0 +1,92 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestScheduler {
+	private ConcurrencyController controller;
+
+	@Before
+	public void setUp() {
+		controller = new ConcurrencyController(4, false);
+	}
+
+	/**
+	 * Проверенный файл заданного размера на заданном хосте
+	 */
+	private DownloadFile file(final String host, final long length) {
+		return new DownloadFile(null, "http://" + host + "/" + length, host + length) {
+			String getHostName() {
+				return host;
+			}
+
+			long getContentLength() {
+				return length;
+			}
+		};
+	}
+
+	private Scheduler scheduler(String policy) {
+		Scheduler scheduler = new Scheduler(policy, controller);
+		scheduler.add(file("a", 20));
+		scheduler.add(file("a", 30));
+		scheduler.add(file("b", 10));
+		scheduler.add(file("b", 30));
+		return scheduler;
+	}
+
+	/**
+	 * Тест для проверки порядка проверки
+	 */
+	@Test
+	public void testFifo() {
+		Scheduler scheduler = scheduler(Scheduler.FIFO);
+		assertEquals(scheduler.next().getContentLength(), 20);
+		assertEquals(scheduler.next().getContentLength(), 30);
+		assertEquals(scheduler.next().getContentLength(), 10);
+		assertEquals(scheduler.next().getContentLength(), 30);
+		assertNull(scheduler.next());
+	}
+
+	/**
+	 * Тест для проверки порядка от больших файлов к маленьким
+	 */
+	@Test
+	public void testLargest() {
+		Scheduler scheduler = scheduler(Scheduler.LARGEST);
+		DownloadFile first = scheduler.next();
+		assertEquals(first.getContentLength(), 30);
+		assertEquals(first.getHostName(), "a");								//При равенстве - проверенный раньше
+		assertEquals(scheduler.next().getContentLength(), 30);
+		assertEquals(scheduler.next().getContentLength(), 20);
+		assertEquals(scheduler.next().getContentLength(), 10);
+	}
+
+	/**
+	 * Тест для проверки порядка от маленьких файлов к большим
+	 */
+	@Test
+	public void testSmallest() {
+		Scheduler scheduler = scheduler(Scheduler.SMALLEST);
+		assertEquals(scheduler.next().getContentLength(), 10);
+		assertEquals(scheduler.next().getContentLength(), 20);
+		assertEquals(scheduler.next().getContentLength(), 30);
+	}
+
+	/**
+	 * Тест для проверки очереди хостов
+	 */
+	@Test
+	public void testFair() {
+		Scheduler scheduler = scheduler(Scheduler.FAIR);
+		DownloadFile first = scheduler.next();
+		assertEquals(first.getHostName(), "a");
+		controller.host("a").fileStarted(first);
+		DownloadFile second = scheduler.next();
+		assertEquals(second.getHostName(), "b");							//У хоста a уже загружается файл
+		controller.host("b").fileStarted(second);
+		controller.host("b").fileStarted(file("b", 1));
+		assertEquals(scheduler.next().getHostName(), "a");
+	}
+}
@@ -0,0 +1,46 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestSegment {
+
+	/**
+	 * Тест для проверки деления оставшейся части пополам
+	 */
+	@Test
+	public void testSplit() {
+		Segment segment = new Segment(0, 999);
+		assertEquals(segment.reserve(200), 200);
+		Segment tail = segment.split(100);
+		assertNotNull(tail);
+		assertEquals(segment.getEnd(), 599);						//Осталось 800 байт, делим пополам
+		assertEquals(tail.getPos(), 600);
+		assertEquals(tail.getEnd(), 999);
+		assertEquals(segment.remaining() + tail.remaining(), 800);
+	}
+
+	/**
+	 * Тест для проверки минимального размера части
+	 */
+	@Test
+	public void testSplitMinChunk() {
+		Segment segment = new Segment(0, 999);
+		assertNull(segment.split(501));
+		assertNotNull(segment.split(500));
+	}
+
+	/**
+	 * Тест для проверки записи после сокращения диапазона
+	 */
+	@Test
+	public void testReserveAfterSplit() {
+		Segment segment = new Segment(0, 999);
+		segment.split(100);
+		assertEquals(segment.reserve(400), 400);
+		assertEquals(segment.reserve(400), 100);					//Вторая половина уже принадлежит другому потоку
+		assertEquals(segment.reserve(400), 0);
+		assertEquals(segment.remaining(), 0);
+	}
+}
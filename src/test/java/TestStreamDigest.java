@@ -0,0 +1,85 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Random;
+
+import org.junit.*;
+
+public class TestStreamDigest {
+	private static final int SIZE = 300000;
+	private File file;
+	private byte[] data;
+	private String expected;
+	private FileChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("test", ".bin");
+		data = new byte[SIZE];
+		new Random(1).nextBytes(data);
+		Files.write(file.toPath(), data);
+		expected = FileAliases.digest(file.toPath());
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		channel.close();
+		file.delete();
+	}
+
+	private void written(StreamDigest digest, int start, int end) throws IOException {
+		digest.written(ByteBuffer.wrap(data, start, end - start), start);
+	}
+
+	/**
+	 * Тест для проверки хэширования последовательной записи
+	 */
+	@Test
+	public void testSequential() throws IOException {
+		StreamDigest digest = new StreamDigest(channel, SIZE);
+		for (int pos = 0; pos < SIZE; pos += 7000)
+			written(digest, pos, Math.min(pos + 7000, SIZE));
+		assertEquals(digest.finish(), expected);
+	}
+
+	/**
+	 * Тест для проверки хэширования частей, записанных не по порядку
+	 */
+	@Test
+	public void testOutOfOrder() throws IOException {
+		StreamDigest digest = new StreamDigest(channel, SIZE);
+		written(digest, 200000, 250000);
+		written(digest, 100000, 150000);
+		written(digest, 250000, SIZE);
+		written(digest, 150000, 200000);
+		written(digest, 0, 100000);
+		assertEquals(digest.finish(), expected);
+	}
+
+	/**
+	 * Тест для проверки продолжения загрузки: начало файла записано в прошлый раз
+	 */
+	@Test
+	public void testResumed() throws IOException {
+		StreamDigest digest = new StreamDigest(channel, SIZE);
+		written(digest, 150000, SIZE);
+		assertEquals(digest.finish(), expected);
+	}
+
+	/**
+	 * Тест для проверки, что испорченные данные дают другой SHA-256
+	 */
+	@Test
+	public void testMismatch() throws IOException {
+		channel.write(ByteBuffer.wrap(new byte[] {(byte)(data[100] + 1)}), 100);
+		StreamDigest digest = new StreamDigest(channel, SIZE);
+		written(digest, 1000, SIZE);
+		assertFalse(digest.finish().equals(expected));
+	}
+}
@@ -0,0 +1,65 @@
+package com.ConsoleDownloader;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class TestTokenBucket {
+	private static final int RATE = 1024*1024;
+
+	/**
+	 * Забирает count байт блоками по 1024 из нескольких потоков
+	 * @return время в мс
+	 */
+	private long drain(final TokenBucket bucket, int countThreads, final long count) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		long timeStart = System.currentTimeMillis();
+		for (int i = 0; i < countThreads; i++) {
+			Thread thrd = new Thread(new Runnable() {
+				public void run() {
+					for (long got = 0; got < count; got += 1024)
+						bucket.acquire(1024);
+				}
+			});
+			thrd.start();
+			threads.add(thrd);
+		}
+		for (Thread thrd: threads)
+			thrd.join();
+		return System.currentTimeMillis() - timeStart;
+	}
+
+	/**
+	 * Тест для проверки суммарной скорости нескольких потоков
+	 */
+	@Test
+	public void testAggregateRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(RATE);
+		long time = drain(bucket, 4, RATE / 8);							//Всего пол-секунды трафика
+		assertTrue("time=" + time, time >= 350 && time < 700);		//Минус начальный запас в 1/10 секунды
+	}
+
+	/**
+	 * Тест для проверки смены скорости на лету
+	 */
+	@Test
+	public void testSetRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(RATE);
+		bucket.setRate(RATE * 4);
+		assertEquals(bucket.getRate(), RATE * 4);
+		long time = drain(bucket, 4, RATE / 8);
+		assertTrue("time=" + time, time < 300);
+	}
+
+	/**
+	 * Тест для проверки работы без ограничения
+	 */
+	@Test
+	public void testUnlimited() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(0);
+		long time = drain(bucket, 2, RATE * 16);
+		assertTrue("time=" + time, time < 1000);
+	}
+}